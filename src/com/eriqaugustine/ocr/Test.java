@@ -1,10 +1,17 @@
 package com.eriqaugustine.ocr;
 
+import com.eriqaugustine.ocr.image.Blob;
+import com.eriqaugustine.ocr.image.BubbleBenchmark;
 import com.eriqaugustine.ocr.image.BubbleDetection;
+import com.eriqaugustine.ocr.image.CharacterCell;
 import com.eriqaugustine.ocr.image.CharacterImage;
 import com.eriqaugustine.ocr.image.Filters;
 import com.eriqaugustine.ocr.image.ImageTranslator;
+import com.eriqaugustine.ocr.image.PagePipeline;
+import com.eriqaugustine.ocr.image.TextComponents;
+import com.eriqaugustine.ocr.image.TextGrid;
 import com.eriqaugustine.ocr.image.TextImage;
+import com.eriqaugustine.ocr.image.TextLayout;
 import com.eriqaugustine.ocr.math.BinaryConfusionMatrix;
 import com.eriqaugustine.ocr.pdc.PDC;
 import com.eriqaugustine.ocr.pdc.PDCClassifier;
@@ -24,6 +31,7 @@ import org.apache.logging.log4j.Logger;
 
 import java.awt.GraphicsEnvironment;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -64,8 +72,12 @@ public class Test {
       //translateTest();
       //splitImage();
       //imageTranslateTest();
+      //volumeTranslateTest();
       //volumeFillTest();
       //bubbleTrainingTest();
+      //bubbleBenchmarkTest();
+      //bubbleAgreementTest();
+      //segmentationBenchmarkTest();
       //loggingTest();
       imageMagickBaseTest();
    }
@@ -116,6 +128,136 @@ public class Test {
       System.out.println(matrix.fullToString());
    }
 
+   public static void bubbleBenchmarkTest() throws Exception {
+      String outDirectory = FileUtils.itterationDir("out", "bubbleBenchmark");
+
+      BubbleBenchmark.main(new String[]{BubbleBenchmark.DEFAULT_TRAINING_SET,
+                                        "" + BubbleBenchmark.DEFAULT_ITERATIONS,
+                                        outDirectory + "/benchmark.json"});
+   }
+
+   /**
+    * Check that the pyramid and streaming detection find exactly the same bubbles
+    *  as the full page detection.
+    */
+   public static void bubbleAgreementTest() throws Exception {
+      String[] images = {"page.png", "page2.jpg"};
+
+      for (String imageName : images) {
+         MagickImage image = new MagickImage(new ImageInfo("testImages/" + imageName));
+         List<Blob> bubbles = BubbleDetection.getBubbles(image);
+
+         System.out.println(imageName + " pyramid: " +
+                            BubbleBenchmark.agreement(bubbles,
+                                                      BubbleDetection.getBubblesPyramid(image)));
+         System.out.println(imageName + " streaming: " +
+                            BubbleBenchmark.agreement(bubbles,
+                                                      BubbleDetection.getBubblesStreaming(image)));
+      }
+   }
+
+   /**
+    * Compare grid segmentation (TextGrid) and connected component segmentation
+    *  (TextComponents) on the text test images.
+    * Both are walked in reading order (see TextLayout.visitCharacters()), so they agree if
+    *  they come out with the same sequence of characters and spaces.
+    * Then each character is checked for the same bounds as the one in the same spot of
+    *  the grid (components don't pick up stray ink that doesn't touch a character,
+    *  so those can be off by a little).
+    */
+   public static void segmentationBenchmarkTest() throws Exception {
+      String[] images = {"1Text.png", "2Text.png",
+                         "2ColVertical.png", "2ColVerticalMissing.png",
+                         "partHiragana.png", "katakana.png"};
+      int[] expectedCharacters = {4, 9, 8, 7, 45, 46};
+      int iterations = 100;
+
+      for (int i = 0; i < images.length; i++) {
+         MagickImage image = new MagickImage(new ImageInfo("testImages/" + images[i]));
+         int width = image.getDimension().width;
+         byte[] pixels = Filters.grayPixels(image);
+
+         // Warm up.
+         new TextGrid(pixels, width);
+         new TextComponents(pixels, width);
+
+         TextGrid grid = null;
+         long start = System.nanoTime();
+         for (int j = 0; j < iterations; j++) {
+            grid = new TextGrid(pixels, width);
+         }
+         double gridMs = (System.nanoTime() - start) / 1000000.0 / iterations;
+
+         TextComponents components = null;
+         start = System.nanoTime();
+         for (int j = 0; j < iterations; j++) {
+            components = new TextComponents(pixels, width);
+         }
+         double componentsMs = (System.nanoTime() - start) / 1000000.0 / iterations;
+
+         List<int[]> gridCells = layoutBounds(grid);
+         List<int[]> componentCells = layoutBounds(components);
+
+         String gridLayout = layoutString(gridCells);
+         String componentLayout = layoutString(componentCells);
+
+         int sameBounds = 0;
+         int gridCharacters = 0;
+         for (int j = 0; j < gridCells.size(); j++) {
+            if (gridCells.get(j) == null) {
+               continue;
+            }
+
+            gridCharacters++;
+            if (j < componentCells.size() &&
+                Arrays.equals(gridCells.get(j), componentCells.get(j))) {
+               sameBounds++;
+            }
+         }
+
+         System.out.println(String.format(
+               "%-24s expected: %3d, grid: %3d (%.3f ms), components: %3d (%.3f ms), " +
+               "same layout: %s, same bounds: %d/%d",
+               images[i], expectedCharacters[i],
+               gridCharacters, gridMs,
+               components.getNumCharacters(), componentsMs,
+               gridLayout.equals(componentLayout), sameBounds, gridCharacters));
+
+         if (!gridLayout.equals(componentLayout)) {
+            System.out.println("   grid:       " + gridLayout);
+            System.out.println("   components: " + componentLayout);
+         }
+      }
+   }
+
+   /**
+    * The bounds of every character in reading order (null for spaces).
+    */
+   private static List<int[]> layoutBounds(TextLayout layout) throws Exception {
+      final List<int[]> rtn = new ArrayList<int[]>();
+
+      layout.visitCharacters(new CharacterCell.Visitor() {
+         public void visit(CharacterCell cell) {
+            rtn.add(cell.isSpace() ? null : cell.getBounds());
+         }
+      });
+
+      return rtn;
+   }
+
+   /**
+    * '#' for every character and '_' for every space.
+    */
+   private static String layoutString(List<int[]> cells) {
+      StringBuilder builder = new StringBuilder();
+
+      for (int[] bounds : cells) {
+         builder.append(bounds == null ? '_' : '#');
+      }
+
+      return builder.toString();
+   }
+
    public static void splitImage() throws Exception {
       String outDirectory = FileUtils.itterationDir("out", "splitImage");
 
@@ -182,6 +324,21 @@ public class Test {
       }
    }
 
+   public static void volumeTranslateTest() throws Exception {
+      String outDirectory = FileUtils.itterationDir("out", "volTrans");
+
+      PagePipeline pipeline = new PagePipeline(new ImageTranslator());
+
+      long start = System.currentTimeMillis();
+      List<File> pages = pipeline.run(new File("testImages/testSets/youbatoVol1_kana"),
+                                      new File(outDirectory));
+      long time = System.currentTimeMillis() - start;
+
+      System.out.println(String.format("Translated %d pages in %d ms (%.1f ms/page)",
+                                       pages.size(), time,
+                                       time / (double)Math.max(1, pages.size())));
+   }
+
    public static void translateTest() throws Exception {
       String alphabet = HIRAGANA + KATAKANA;
 
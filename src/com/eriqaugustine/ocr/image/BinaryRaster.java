@@ -0,0 +1,287 @@
+package com.eriqaugustine.ocr.image;
+
+import com.eriqaugustine.ocr.utils.BufferPool;
+
+import magick.MagickImage;
+
+import java.awt.Dimension;
+
+/**
+ * A black and white image with one bit per pixel.
+ * Each row is packed into |wordsPerRow| longs (bit i of word w is column w * 64 + i),
+ *  and any bits past |width| in the last word are always zero.
+ * Set bits are black.
+ */
+public class BinaryRaster {
+   public final int width;
+   public final int height;
+   public final int wordsPerRow;
+
+   private final long[] bits;
+
+   /**
+    * Threshold a grey raster.
+    * A pixel is black if it is at most |threshold| (the same as Filters.bwPixels()).
+    */
+   public static BinaryRaster fromGray(GrayRaster gray, int threshold) {
+      BinaryRaster rtn = new BinaryRaster(gray.width, gray.height);
+
+      for (int row = 0; row < gray.height; row++) {
+         int base = gray.index(row, 0);
+         int wordBase = row * rtn.wordsPerRow;
+
+         for (int col = 0; col < gray.width; col++) {
+            if ((0xFF & gray.pixels[base + col]) <= threshold) {
+               rtn.bits[wordBase + (col >>> 6)] |= 1L << (col & 63);
+            }
+         }
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Threshold the RGB pixels of an image straight into bits (no grey pass).
+    */
+   public static BinaryRaster fromImage(MagickImage image, int threshold) throws Exception {
+      Dimension dimensions = image.getDimension();
+
+      // The RGB pixels are only needed until they are packed.
+      BufferPool pool = BufferPool.shared();
+      byte[] rgb = pool.leaseBytes(dimensions.width * dimensions.height * 3);
+
+      try {
+         return fromRGB(Filters.rgbPixels(image, rgb), dimensions.width, threshold);
+      } finally {
+         pool.release(rgb);
+      }
+   }
+
+   public static BinaryRaster fromImage(MagickImage image) throws Exception {
+      return fromImage(image, Filters.DEFAULT_BW_THRESHOLD);
+   }
+
+   /**
+    * |black| is one boolean per pixel (row major), true is black.
+    * The opposite of toBooleans().
+    */
+   public static BinaryRaster fromBooleans(boolean[] black, int width) {
+      BinaryRaster rtn = new BinaryRaster(width, width == 0 ? 0 : black.length / width);
+
+      for (int row = 0; row < rtn.height; row++) {
+         int base = row * width;
+         int wordBase = row * rtn.wordsPerRow;
+
+         for (int col = 0; col < width; col++) {
+            if (black[base + col]) {
+               rtn.bits[wordBase + (col >>> 6)] |= 1L << (col & 63);
+            }
+         }
+      }
+
+      return rtn;
+   }
+
+   public static BinaryRaster fromRGB(byte[] rgbPixels, int width, int threshold) {
+      BinaryRaster rtn = new BinaryRaster(width, width == 0 ? 0 : rgbPixels.length / 3 / width);
+      Filters.rgbToBinary(rgbPixels, rtn.width, rtn.height, threshold, rtn.bits);
+      return rtn;
+   }
+
+   /**
+    * An all white raster.
+    */
+   public BinaryRaster(int width, int height) {
+      this.width = width;
+      this.height = height;
+      this.wordsPerRow = (width + 63) >>> 6;
+
+      bits = new long[wordsPerRow * height];
+   }
+
+   public boolean get(int row, int col) {
+      return (bits[row * wordsPerRow + (col >>> 6)] & (1L << (col & 63))) != 0;
+   }
+
+   public void set(int row, int col, boolean black) {
+      int index = row * wordsPerRow + (col >>> 6);
+
+      if (black) {
+         bits[index] |= 1L << (col & 63);
+      } else {
+         bits[index] &= ~(1L << (col & 63));
+      }
+   }
+
+   /**
+    * Get a word of a row.
+    */
+   public long getWord(int row, int word) {
+      return bits[row * wordsPerRow + word];
+   }
+
+   /**
+    * The number of black pixels in a row.
+    */
+   public int countRow(int row) {
+      int count = 0;
+      int base = row * wordsPerRow;
+
+      for (int word = 0; word < wordsPerRow; word++) {
+         count += Long.bitCount(bits[base + word]);
+      }
+
+      return count;
+   }
+
+   /**
+    * The number of black pixels.
+    */
+   public int count() {
+      int count = 0;
+      for (long word : bits) {
+         count += Long.bitCount(word);
+      }
+      return count;
+   }
+
+   /**
+    * Get the bounds of the black pixels: [top, left, bottom, right] (inclusive).
+    * Everything is done a word (64 pixels) at a time, and each side stops at the first
+    *  word with something in it, so a glyph with little margin barely gets looked at.
+    * Returns null if there are no black pixels.
+    */
+   public int[] tightBounds() {
+      return tightBounds(0, height, 0, width);
+   }
+
+   /**
+    * Same as above, but only the black pixels inside of a region count
+    *  (the bounds are still in image coordinates).
+    * Returns null if there are no black pixels in the region.
+    */
+   public int[] tightBounds(int startRow, int numRows, int startCol, int numCols) {
+      if (numRows <= 0 || numCols <= 0) {
+         return null;
+      }
+
+      int endRow = startRow + numRows - 1;
+      int endCol = startCol + numCols - 1;
+      int firstWord = startCol >>> 6;
+      int lastWord = endCol >>> 6;
+
+      int top = startRow;
+      while (top <= endRow && isRowEmpty(top, startCol, endCol)) {
+         top++;
+      }
+
+      if (top > endRow) {
+         return null;
+      }
+
+      int bottom = endRow;
+      while (isRowEmpty(bottom, startCol, endCol)) {
+         bottom--;
+      }
+
+      // The masks keep out everything past the region (including the padding bits).
+      int left = -1;
+      for (int word = firstWord; left == -1; word++) {
+         long column = wordColumn(word, top, bottom) & columnMask(word, startCol, endCol);
+         if (column != 0) {
+            left = (word << 6) + Long.numberOfTrailingZeros(column);
+         }
+      }
+
+      int right = -1;
+      for (int word = lastWord; right == -1; word--) {
+         long column = wordColumn(word, top, bottom) & columnMask(word, startCol, endCol);
+         if (column != 0) {
+            right = (word << 6) + 63 - Long.numberOfLeadingZeros(column);
+         }
+      }
+
+      return new int[]{top, left, bottom, right};
+   }
+
+   /**
+    * Check if a row has nothing in [|startCol|, |endCol|].
+    */
+   private boolean isRowEmpty(int row, int startCol, int endCol) {
+      int base = row * wordsPerRow;
+
+      for (int word = startCol >>> 6; word <= endCol >>> 6; word++) {
+         if ((bits[base + word] & columnMask(word, startCol, endCol)) != 0) {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * All the rows in [|startRow|, |endRow|] of a word ORed together.
+    */
+   private long wordColumn(int word, int startRow, int endRow) {
+      long column = 0;
+
+      for (int row = startRow; row <= endRow; row++) {
+         column |= bits[row * wordsPerRow + word];
+      }
+
+      return column;
+   }
+
+   /**
+    * The bits of a word that are in [|startCol|, |endCol|].
+    * Only the first and last word of the range are partial.
+    */
+   private static long columnMask(int word, int startCol, int endCol) {
+      long mask = -1L;
+
+      if (word == startCol >>> 6) {
+         mask &= -1L << (startCol & 63);
+      }
+
+      if (word == endCol >>> 6) {
+         mask &= -1L >>> (63 - (endCol & 63));
+      }
+
+      return mask;
+   }
+
+   /**
+    * One boolean per pixel (row major), true is black.
+    * The same as Filters.discretizePixels().
+    */
+   public boolean[] toBooleans() {
+      boolean[] rtn = new boolean[width * height];
+
+      for (int row = 0; row < height; row++) {
+         for (int col = 0; col < width; col++) {
+            rtn[row * width + col] = get(row, col);
+         }
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Back to grey: black is 0 and white is 0xFF.
+    */
+   public GrayRaster toGray() {
+      byte[] pixels = new byte[width * height];
+
+      for (int row = 0; row < height; row++) {
+         for (int col = 0; col < width; col++) {
+            pixels[row * width + col] = get(row, col) ? 0 : (byte)0xFF;
+         }
+      }
+
+      return new GrayRaster(pixels, width);
+   }
+
+   public MagickImage toImage() throws Exception {
+      return toGray().toImage();
+   }
+}
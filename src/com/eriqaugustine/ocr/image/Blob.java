@@ -3,13 +3,12 @@ package com.eriqaugustine.ocr.image;
 import com.eriqaugustine.ocr.utils.MathUtils;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
 
 /**
  * A Blob is a collection of connected pixels.
@@ -32,11 +31,28 @@ public class Blob {
       new int[]{0, -1},
    };
 
+   // [row, col]
+   // Clockwise, starting from straight up.
+   private static final int[][] MOORE_OFFSETS = new int[][]{
+      new int[]{-1, 0},
+      new int[]{-1, 1},
+      new int[]{0, 1},
+      new int[]{1, 1},
+      new int[]{1, 0},
+      new int[]{1, -1},
+      new int[]{0, -1},
+      new int[]{-1, -1},
+   };
+   private static final int MOORE_WEST = 6;
+
    private static int nextId = 0;
 
    private int id;
    private Set<Integer> points;
 
+   // The label of this blob in its labeling (see BlobTree), -1 if it was not labeled.
+   private int label;
+
    private List<Blob> children;
    private Blob parent;
 
@@ -48,6 +64,32 @@ public class Blob {
    private final int imageWidth;
    private final int imageLength;
 
+   // Statistics that are collected while the blob is being labeled.
+   // Note that these are not maintained by geometryAdjust().
+   private int blackCount;
+   private int perimeter;
+
+   // Which of the image corners this blob holds (see isBorderBlob()).
+   private int cornerMask;
+
+   // The labels for the image that this blob was labeled in (see setLabelMap()).
+   // When available, this is used instead of |points| to check if a pixel is in the blob.
+   private int[] labelMap;
+
+   // True if the points are known to be a single 4-connected piece (ie. it came from labeling).
+   // Only then can the outline be traced.
+   private boolean connected;
+
+   // Derived geometry, computed when first asked for.
+   // These are dropped whenever the points or bounds change (see invalidateGeometry()).
+   // The cached structures are handed out directly, so callers must not modify them.
+   private int[] contour;
+   private int[][] outerColumns;
+   private int[][] outerRows;
+   private int[][] approximateOutline;
+   private Map<Integer, List<int[]>> outline;
+   private Map<Integer, int[]> boundaries;
+
    public Blob(int imageLength, int imageWidth) {
       this(imageLength, imageWidth, BLOB_COVERAGE);
    }
@@ -56,6 +98,7 @@ public class Blob {
       assert(blobCoverage <= 1);
 
       id = nextId++;
+      label = -1;
       points = new HashSet<Integer>((int)(imageLength * blobCoverage));
 
       minRow = MathUtils.indexToRow(imageLength - 1, imageWidth);
@@ -68,10 +111,35 @@ public class Blob {
 
       children = new ArrayList<Blob>();
       parent = null;
+
+      blackCount = 0;
+      perimeter = 0;
+      cornerMask = 0;
+
+      labelMap = null;
+      connected = false;
+
+      invalidateGeometry();
+   }
+
+   /**
+    * Add a point that was black in the raw (non-edged) image.
+    */
+   public void addPoint(int index, boolean black) {
+      addPoint(index);
+
+      if (black) {
+         blackCount++;
+      }
    }
 
    public void addPoint(int index) {
       points.add(index);
+      cornerMask |= cornerBit(index);
+
+      labelMap = null;
+      connected = false;
+      invalidateGeometry();
 
       int row = MathUtils.indexToRow(index, imageWidth);
       int col = MathUtils.indexToCol(index, imageWidth);
@@ -101,6 +169,10 @@ public class Blob {
       return children.size();
    }
 
+   public List<Blob> getChildren() {
+      return children;
+   }
+
    public void clearChildren() {
       children.clear();
    }
@@ -133,6 +205,7 @@ public class Blob {
     */
    public void geometryAdjust(double sideCoverage) {
       adjustBoundaries(sideCoverage);
+      invalidateGeometry();
    }
 
    public void geometryAdjust() {
@@ -237,7 +310,11 @@ public class Blob {
       } else {
          for (Integer edgePoint : edgePoints) {
             points.remove(edgePoint);
+            cornerMask &= ~cornerBit(edgePoint.intValue());
          }
+
+         labelMap = null;
+         connected = false;
       }
 
       return true;
@@ -246,26 +323,34 @@ public class Blob {
    /**
     * Get the boundaries of the blob.
     * The boundaries are defined by a map: {row : [start col, end col]}.
-    * Note: This is not a getter, this requires computation.
+    * This is computed the first time it is asked for, and then cached.
     */
    public Map<Integer, int[]> getBoundaries() {
-      Map<Integer, int[]> boundaries = new HashMap<Integer, int[]>();
+      if (boundaries == null) {
+         boundaries = computeBoundaries();
+      }
+
+      return boundaries;
+   }
+
+   private Map<Integer, int[]> computeBoundaries() {
+      Map<Integer, int[]> rtn = new HashMap<Integer, int[]>();
 
       for (Integer index : points) {
          int row = MathUtils.indexToRow(index, imageWidth);
          int col = MathUtils.indexToCol(index, imageWidth);
 
-         if (!boundaries.containsKey(row)) {
+         if (!rtn.containsKey(row)) {
             int[] bounds = {col, col};
-            boundaries.put(row, bounds);
-         } else if (col < boundaries.get(row)[0]) {
-            boundaries.get(row)[0] = col;
-         } else if (col > boundaries.get(row)[1]) {
-            boundaries.get(row)[1] = col;
+            rtn.put(row, bounds);
+         } else if (col < rtn.get(row)[0]) {
+            rtn.get(row)[0] = col;
+         } else if (col > rtn.get(row)[1]) {
+            rtn.get(row)[1] = col;
          }
       }
 
-      return boundaries;
+      return rtn;
    }
 
    public int getBoundingWidth() {
@@ -375,72 +460,118 @@ public class Blob {
 
    /**
     * Get the outmost column at every row.
-    * Get these by just scanning each row LTR and RTL.
+    * The leftmost and rightmost points of a row are always on the contour,
+    *  so these come straight from getContour().
     */
    public int[][] getOuterColumns() {
+      if (outerColumns == null) {
+         outerColumns = computeOuterColumns();
+      }
+
+      return outerColumns;
+   }
+
+   private int[][] computeOuterColumns() {
       int[][] cols = new int[getBoundingHeight()][];
+      for (int i = 0; i < cols.length; i++) {
+         cols[i] = new int[]{Integer.MAX_VALUE, -1};
+      }
 
-      for (int row = minRow; row <= maxRow; row++) {
-         int firstCol = minCol;
-         int lastCol = maxCol;
+      for (int index : outerPoints()) {
+         int[] bounds = cols[MathUtils.indexToRow(index, imageWidth) - minRow];
+         int col = MathUtils.indexToCol(index, imageWidth);
 
-         for (int col = minCol; col <= maxCol; col++) {
-            int index = MathUtils.rowColToIndex(row, col, imageWidth);
-            if (points.contains(index)) {
-               firstCol = col;
-               break;
-            }
-         }
+         bounds[0] = Math.min(bounds[0], col);
+         bounds[1] = Math.max(bounds[1], col);
+      }
 
-         for (int col = maxCol; col >= minCol; col--) {
-            int index = MathUtils.rowColToIndex(row, col, imageWidth);
-            if (points.contains(index)) {
-               lastCol = col;
-               break;
-            }
+      // Empty rows (only possible after a geometry adjust) span the whole blob.
+      for (int[] bounds : cols) {
+         if (bounds[1] == -1) {
+            bounds[0] = minCol;
+            bounds[1] = maxCol;
          }
-
-         cols[row - minRow] = new int[]{firstCol, lastCol};
       }
 
       return cols;
    }
 
+   /**
+    * Get the outmost row at every column.
+    * Just like getOuterColumns(), these come from the contour.
+    */
    public int[][] getOuterRows() {
+      if (outerRows == null) {
+         outerRows = computeOuterRows();
+      }
+
+      return outerRows;
+   }
+
+   private int[][] computeOuterRows() {
       int[][] rows = new int[getBoundingWidth()][];
+      for (int i = 0; i < rows.length; i++) {
+         rows[i] = new int[]{Integer.MAX_VALUE, -1};
+      }
 
-      for (int col = minCol; col <= maxCol; col++) {
-         int firstRow = minRow;
-         int lastRow = maxRow;
+      for (int index : outerPoints()) {
+         int[] bounds = rows[MathUtils.indexToCol(index, imageWidth) - minCol];
+         int row = MathUtils.indexToRow(index, imageWidth);
 
-         for (int row = minRow; row <= maxRow; row++) {
-            int index = MathUtils.rowColToIndex(row, col, imageWidth);
-            if (points.contains(index)) {
-               firstRow = row;
-               break;
-            }
-         }
+         bounds[0] = Math.min(bounds[0], row);
+         bounds[1] = Math.max(bounds[1], row);
+      }
 
-         for (int row = maxRow; row >= minRow; row--) {
-            int index = MathUtils.rowColToIndex(row, col, imageWidth);
-            if (points.contains(index)) {
-               lastRow = row;
-               break;
-            }
+      for (int[] bounds : rows) {
+         if (bounds[1] == -1) {
+            bounds[0] = minRow;
+            bounds[1] = maxRow;
          }
-
-         rows[col - minCol] = new int[]{firstRow, lastRow};
       }
 
       return rows;
    }
 
+   /**
+    * Get the points that could be the outmost in their row or column.
+    * For a connected blob, this is the contour.
+    * Otherwise, there is no way around looking at every point.
+    * Points outside of the bounds (after a geometry adjust) are left out.
+    */
+   private int[] outerPoints() {
+      if (connected) {
+         return getContour();
+      }
+
+      int[] rtn = new int[points.size()];
+      int count = 0;
+
+      for (Integer point : points) {
+         int row = MathUtils.indexToRow(point.intValue(), imageWidth);
+         int col = MathUtils.indexToCol(point.intValue(), imageWidth);
+
+         if (row >= minRow && row <= maxRow && col >= minCol && col <= maxCol) {
+            rtn[count++] = point.intValue();
+         }
+      }
+
+      return Arrays.copyOf(rtn, count);
+   }
+
    /**
     * Get the approximate outline for this blob.
     * The returned points are seperated out according to DIRECTIONAL_OFFSETS.
     * HACK(eriq): Cleanup this hackery (magic numbers and such).
     */
    public int[][] approximateOutline() {
+      if (approximateOutline == null) {
+         approximateOutline = computeApproximateOutline();
+      }
+
+      return approximateOutline;
+   }
+
+   private int[][] computeApproximateOutline() {
       int[][] outerCols = getOuterColumns();
       int[][] outerRows = getOuterRows();
 
@@ -467,126 +598,212 @@ public class Blob {
 
    /**
     * Get the outline of this blob.
-    * To get the outline, take the first point on the minRow.
-    * Then look at the adjacent points.
-    * If a point touches a spot that is not in the blob, then it is part of the outline.
+    * The outline is the contour (see getContour()) collapsed into rows.
     * @return {row: [[begin, end], ... (ordered)]}
     *  ie. "For this row, the blob begins here and ends here,
     *  then starts again here and so on."
     */
    public Map<Integer, List<int[]>> getOutline() {
-      Map<Integer, List<Integer>> border = new HashMap<Integer, List<Integer>>();
-      for (int row = minRow; row <= maxRow; row++) {
-         border.put(new Integer(row), new ArrayList<Integer>());
+      if (outline == null) {
+         outline = computeOutline();
       }
 
-      Set<Integer> visited = new HashSet<Integer>();
-      Stack<Integer> candidates = new Stack<Integer>();
+      return outline;
+   }
 
-      for (int col = minCol; col <= maxCol; col++) {
-         int index = MathUtils.rowColToIndex(minRow, col, imageWidth);
-         if (points.contains(new Integer(index))) {
-            candidates.push(new Integer(index));
-            break;
-         }
+   private Map<Integer, List<int[]>> computeOutline() {
+      int[][] cols = getOuterColumns();
+
+      Map<Integer, List<int[]>> rtn = new HashMap<Integer, List<int[]>>();
+      for (int i = 0; i < cols.length; i++) {
+         List<int[]> ranges = new ArrayList<int[]>(1);
+         ranges.add(cols[i]);
+         rtn.put(new Integer(minRow + i), ranges);
       }
 
-      // The offsets for possible candidates.
-      // [[row, col], ...]
-      int[][] candidateOrientations = new int[][]{
-         new int[]{-1, 0},
-         new int[]{-1, 1},
-         new int[]{0, 1},
-         new int[]{1, 1},
-         new int[]{1, 0},
-         new int[]{1, -1},
-         new int[]{0, -1},
-         new int[]{-1, -1},
-      };
-
-      // Eventhough candidates can come from every 45 angle,
-      // we should only look at the cardinal direction for the border.
-      // This is to prevent two points right next to eachother from getting
-      // promoted to a border (one candidate was a diagnal one).
-      int[][] borderOrientations = new int[][]{
-         new int[]{-1, 0},
-         new int[]{0, 1},
-         new int[]{1, 0},
-         new int[]{0, -1},
-      };
-
-      while (!candidates.empty()) {
-         int candidate = candidates.pop().intValue();
-
-         // A double add can happen if a point is in the stack, but a neighbor
-         //  add it to the stack before getting checked.
-         if (visited.contains(candidate)) {
-            continue;
+      return rtn;
+   }
+
+   /**
+    * Trace the outer contour of this blob (Moore-neighbor tracing).
+    * The contour starts at the first point of the blob (in row order) and goes clockwise.
+    * Points where the contour touches itself show up more than once.
+    * This only looks at pixels around the contour, so it is linear in the perimeter.
+    * If the blob is not connected, then only the piece with the first point gets traced.
+    * @return The indexes of the contour points, in order.
+    */
+   public int[] getContour() {
+      if (contour == null) {
+         contour = computeContour();
+      }
+
+      return contour;
+   }
+
+   private int[] computeContour() {
+      if (points.isEmpty()) {
+         return new int[0];
+      }
+
+      // Find the first point.
+      int startRow = -1;
+      int startCol = -1;
+      for (int row = minRow; row <= maxRow && startRow == -1; row++) {
+         for (int col = minCol; col <= maxCol; col++) {
+            if (isPoint(row, col)) {
+               startRow = row;
+               startCol = col;
+               break;
+            }
          }
+      }
 
-         visited.add(candidate);
+      if (startRow == -1) {
+         return new int[0];
+      }
 
-         int row = MathUtils.indexToRow(candidate, imageWidth);
-         int col = MathUtils.indexToCol(candidate, imageWidth);
+      int[] trace = new int[16];
+      int length = 0;
+      trace[length++] = MathUtils.rowColToIndex(startRow, startCol, imageWidth);
 
-         for (int[] offsets : borderOrientations) {
-            int offsetRow = row + offsets[0];
-            int offsetCol = col + offsets[1];
+      int row = startRow;
+      int col = startCol;
 
-            int index = MathUtils.rowColToIndex(offsetRow,
-                                                offsetCol,
-                                                imageWidth);
-            if (!points.contains(index)) {
-               border.get(row).add(col);
+      // The neighbor that we came from (which is never in the blob).
+      // Nothing is left of the first point.
+      int backtrack = MOORE_WEST;
+      int firstMove = -1;
 
-               for (int[] candidateOffsets : candidateOrientations) {
-                  int candidateRow = row + candidateOffsets[0];
-                  int candidateCol = col + candidateOffsets[1];
+      // Every point can be entered from at most four sides.
+      int maxLength = 4 * points.size() + 1;
 
-                  int candidateIndex =
-                        MathUtils.rowColToIndex(candidateRow,
-                                                candidateCol,
-                                                imageWidth);
+      while (length < maxLength) {
+         // Go clockwise from the backtrack until a point is found.
+         int move = -1;
+         for (int i = 1; i < MOORE_OFFSETS.length; i++) {
+            int direction = (backtrack + i) % MOORE_OFFSETS.length;
+            if (isPoint(row + MOORE_OFFSETS[direction][0], col + MOORE_OFFSETS[direction][1])) {
+               move = direction;
+               break;
+            }
+         }
 
-                  if (!visited.contains(candidateIndex) &&
-                      points.contains(candidateIndex)) {
-                     candidates.push(candidateIndex);
-                  }
-               }
+         // A single point.
+         if (move == -1) {
+            break;
+         }
 
+         // Done when leaving the start the same way as the first time.
+         if (row == startRow && col == startCol) {
+            if (firstMove == -1) {
+               firstMove = move;
+            } else if (move == firstMove) {
+               // The start was added again when it was re-entered.
+               length--;
                break;
             }
          }
+
+         // The new backtrack is the last neighbor that was checked (it was not in the blob).
+         int checked = (move + MOORE_OFFSETS.length - 1) % MOORE_OFFSETS.length;
+         int newRow = row + MOORE_OFFSETS[move][0];
+         int newCol = col + MOORE_OFFSETS[move][1];
+         backtrack = mooreDirection(row + MOORE_OFFSETS[checked][0] - newRow,
+                                    col + MOORE_OFFSETS[checked][1] - newCol);
+
+         row = newRow;
+         col = newCol;
+
+         if (length == trace.length) {
+            trace = Arrays.copyOf(trace, length * 2);
+         }
+         trace[length++] = MathUtils.rowColToIndex(row, col, imageWidth);
+      }
+
+      return Arrays.copyOf(trace, length);
+   }
+
+   private static int mooreDirection(int rowOffset, int colOffset) {
+      for (int i = 0; i < MOORE_OFFSETS.length; i++) {
+         if (MOORE_OFFSETS[i][0] == rowOffset && MOORE_OFFSETS[i][1] == colOffset) {
+            return i;
+         }
       }
 
-      return collapseBorderPoints(border);
+      assert(false);
+      return -1;
    }
 
    /**
-    * Collapse border to be a list of ranges that represent the blob's border.
-    * See getOutline()'s comment.
-    * Right now, |border| is: {row: [col, ... (unordered)]}.
-    * It needs to be: {row: [[begin, end], ... (ordered)]}.
-    * WARNING: The values in |border| will get changed.
+    * Check if the pixel at (|row|, |col|) is in the blob.
+    * Uses the label map if there is one (no hashing).
     */
-   private Map<Integer, List<int[]>> collapseBorderPoints(Map<Integer, List<Integer>> border) {
-      Map<Integer, List<int[]>> rtn = new HashMap<Integer, List<int[]>>();
+   private boolean isPoint(int row, int col) {
+      if (row < 0 || col < 0 || col >= imageWidth || row >= imageLength / imageWidth) {
+         return false;
+      }
 
-      for (Map.Entry<Integer, List<Integer>> entry : border.entrySet()) {
-         List<Integer> sortedCols = entry.getValue();
+      int index = MathUtils.rowColToIndex(row, col, imageWidth);
 
-         if (sortedCols.size() == 0) {
-            continue;
-         }
+      if (labelMap != null) {
+         return labelMap[index] == label;
+      }
 
-         Collections.sort(sortedCols);
+      return points.contains(index);
+   }
 
-         List<int[]> ranges = new ArrayList<int[]>();
+   /**
+    * Tell the blob about the labels for the image it was labeled in.
+    * All of (and only) the pixels with this blob's label must be in the blob,
+    *  so this must be called after all the points have been added.
+    * The blob is then known to be connected, and membership checks can go through the
+    *  label map instead of the points.
+    * Adding or removing points after this drops the label map.
+    * |labels| can be longer than the image (a reused buffer), only the front is used.
+    */
+   public void setLabelMap(int[] labels) {
+      assert(labels.length >= imageLength);
+
+      labelMap = labels;
+      connected = true;
+      invalidateGeometry();
+   }
+
+   /**
+    * Drop all the cached geometry.
+    */
+   private void invalidateGeometry() {
+      contour = null;
+      outerColumns = null;
+      outerRows = null;
+      approximateOutline = null;
+      outline = null;
+      boundaries = null;
+   }
+
+   /**
+    * Make a copy of this blob (and its kids) in a larger image.
+    * This blob's (0, 0) will be at (|rowOffset|, |colOffset|) in the new image.
+    * The labeling statistics come along, but the label does not (it was for the old image).
+    */
+   public Blob translate(int rowOffset, int colOffset, int newImageLength, int newImageWidth) {
+      Blob rtn = new Blob(newImageLength, newImageWidth,
+                          Math.min(1.0, (double)size() / newImageLength));
+
+      for (Integer point : points) {
+         int row = MathUtils.indexToRow(point.intValue(), imageWidth) + rowOffset;
+         int col = MathUtils.indexToCol(point.intValue(), imageWidth) + colOffset;
+         rtn.addPoint(MathUtils.rowColToIndex(row, col, newImageWidth));
+      }
 
-         ranges.add(new int[]{sortedCols.get(0),
-                              sortedCols.get(sortedCols.size() - 1)});
+      rtn.blackCount = blackCount;
+      rtn.perimeter = perimeter;
+      rtn.connected = connected;
 
-         rtn.put(entry.getKey(), ranges);
+      for (Blob kid : children) {
+         Blob newKid = kid.translate(rowOffset, colOffset, newImageLength, newImageWidth);
+         newKid.setParent(rtn);
+         rtn.addChild(newKid);
       }
 
       return rtn;
@@ -628,6 +845,14 @@ public class Blob {
       return id;
    }
 
+   public int getLabel() {
+      return label;
+   }
+
+   public void setLabel(int label) {
+      this.label = label;
+   }
+
    public Set<Integer> getPoints() {
       return points;
    }
@@ -651,12 +876,58 @@ public class Blob {
    /**
     * Check if the the blob is the border blob
     * (the blob the surrounds the initial borders of the image).
+    * The corners are tracked as points are added, so this does not need to look at the points.
     */
    public boolean isBorderBlob() {
-      return points.contains(0) &&
-             points.contains(imageLength - 1) &&
-             points.contains(imageWidth - 1) &&
-             points.contains(imageLength - imageWidth + 1);
+      return cornerMask == 0xF;
+   }
+
+   private int cornerBit(int index) {
+      int bit = 0;
+
+      if (index == 0) {
+         bit |= 0x1;
+      }
+
+      if (index == imageLength - 1) {
+         bit |= 0x2;
+      }
+
+      if (index == imageWidth - 1) {
+         bit |= 0x4;
+      }
+
+      if (index == imageLength - imageWidth + 1) {
+         bit |= 0x8;
+      }
+
+      return bit;
+   }
+
+   /**
+    * The number of points that were black in the raw image when this blob was labeled.
+    */
+   public int getBlackCount() {
+      return blackCount;
+   }
+
+   /**
+    * A blob is black if at least half of its points were black in the raw image.
+    */
+   public boolean isBlack() {
+      return blackCount >= size() / 2;
+   }
+
+   /**
+    * The number of pixel sides that seperate this blob from anything else
+    * (edges or the end of the image).
+    */
+   public int getPerimeter() {
+      return perimeter;
+   }
+
+   public void setPerimeter(int perimeter) {
+      this.perimeter = perimeter;
    }
 
    public int hashCode() {
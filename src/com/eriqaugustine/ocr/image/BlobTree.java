@@ -0,0 +1,276 @@
+package com.eriqaugustine.ocr.image;
+
+import com.eriqaugustine.ocr.utils.MathUtils;
+
+import java.awt.Rectangle;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The containment tree for all the blobs in an image.
+ * A blob's parent is the blob that encloses it.
+ * The tree is built once (right after labeling) so that any parentage question
+ *  is just a walk up the tree instead of a search through all the blobs.
+ *
+ * A blob encloses another if every ray cast straight out (up, down, left, right) from
+ *  the other's outline first lands on it.
+ * Rays pass over edges and over any blob whose bounds do not contain the kid
+ *  (ie. siblings), so neighboring characters do not hide the real parent.
+ * If the rays land on different blobs, then the blob has no parent.
+ *
+ * When only a region of a page was labeled, the blobs that run off of the region
+ *  can be marked as cut off. Their real bounds are unknown, so a ray that lands on one
+ *  can't tell if it encloses the kid.
+ * Cut off black blobs are the page's line art, which is what encloses the things
+ *  in the region. So they are all treated as a single blob (the line art outside of
+ *  the region) and the ray votes for that.
+ * Cut off white blobs are the paper around the line art, which doesn't enclose
+ *  anything in the region, so rays pass over them.
+ * A ray that runs out of the region (on a side that is not the side of the page)
+ *  would have kept going into the line art, so it votes for the outside too.
+ * Cut off blobs never get a parent.
+ */
+public class BlobTree {
+   // The label used for edge pixels (pixels that are not in any blob).
+   public static final int EDGE_LABEL = -1;
+
+   private static final int NO_PARENT = -1;
+
+   // Cut off blobs (by label), null if nothing is cut off.
+   private final boolean[] cutOff;
+
+   // The label that stands in for all of the cut off black blobs.
+   private final int outsideLabel;
+
+   // Whether rays that run off of a side of the image go on into the rest of the page.
+   private final boolean openUp;
+   private final boolean openDown;
+   private final boolean openLeft;
+   private final boolean openRight;
+
+   /**
+    * All of the labeled blobs. A blob's label is its index.
+    */
+   private final List<Blob> blobs;
+
+   /**
+    * {label: parent label}
+    */
+   private final int[] parents;
+
+   /**
+    * |labels| is the label for every pixel in the image (EDGE_LABEL for edges).
+    * |blobs| must be indexed by label.
+    */
+   public BlobTree(List<Blob> blobs, int[] labels, int imageWidth) {
+      this(blobs, labels, imageWidth, labels.length / imageWidth, null,
+           false, false, false, false);
+   }
+
+   /**
+    * Build the tree for just a |region| of a page that is |pageWidth| x |pageHeight|.
+    * |labels| only cover the region (anything past the region's pixels is ignored).
+    * |cutOff| marks the blobs (by label) that run off of the region.
+    */
+   public BlobTree(List<Blob> blobs, int[] labels, Rectangle region,
+                   int pageWidth, int pageHeight, boolean[] cutOff) {
+      this(blobs, labels, region.width, region.height, cutOff,
+           region.y != 0, region.y + region.height != pageHeight,
+           region.x != 0, region.x + region.width != pageWidth);
+   }
+
+   private BlobTree(List<Blob> blobs, int[] labels, int imageWidth, int height,
+                    boolean[] cutOff,
+                    boolean openUp, boolean openDown, boolean openLeft, boolean openRight) {
+      assert(cutOff == null || cutOff.length == blobs.size());
+
+      this.blobs = blobs;
+      this.cutOff = cutOff;
+      this.openUp = openUp;
+      this.openDown = openDown;
+      this.openLeft = openLeft;
+      this.openRight = openRight;
+
+      int outside = NO_PARENT;
+      for (int i = 0; cutOff != null && i < cutOff.length && outside == NO_PARENT; i++) {
+         if (cutOff[i] && blobs.get(i).isBlack()) {
+            outside = i;
+         }
+      }
+      outsideLabel = outside;
+
+      int numBlobs = blobs.size();
+
+      parents = new int[numBlobs];
+      boolean[] ambiguous = new boolean[numBlobs];
+      for (int i = 0; i < numBlobs; i++) {
+         parents[i] = NO_PARENT;
+      }
+
+      // The last row/col that a label was seen on (+1 so that zero is never seen).
+      int[] seen = new int[numBlobs];
+
+      // Left
+      for (int row = 0; row < height; row++) {
+         for (int col = 0; col < imageWidth; col++) {
+            castRay(labels, imageWidth, height, seen, row + 1,
+                    row, col, 0, -1, ambiguous);
+         }
+      }
+
+      // Right
+      clear(seen);
+      for (int row = 0; row < height; row++) {
+         for (int col = imageWidth - 1; col >= 0; col--) {
+            castRay(labels, imageWidth, height, seen, row + 1,
+                    row, col, 0, 1, ambiguous);
+         }
+      }
+
+      // Up
+      clear(seen);
+      for (int col = 0; col < imageWidth; col++) {
+         for (int row = 0; row < height; row++) {
+            castRay(labels, imageWidth, height, seen, col + 1,
+                    row, col, -1, 0, ambiguous);
+         }
+      }
+
+      // Down
+      clear(seen);
+      for (int col = 0; col < imageWidth; col++) {
+         for (int row = height - 1; row >= 0; row--) {
+            castRay(labels, imageWidth, height, seen, col + 1,
+                    row, col, 1, 0, ambiguous);
+         }
+      }
+
+      for (int i = 0; i < numBlobs; i++) {
+         if (ambiguous[i]) {
+            parents[i] = NO_PARENT;
+         }
+      }
+   }
+
+   /**
+    * If the pixel at (|row|, |col|) is the first pixel of its blob in this line
+    *  (as marked by |stamp|), then cast a ray from it in the direction of the offsets
+    *  and vote for the first enclosing blob that the ray hits.
+    */
+   private void castRay(int[] labels, int width, int height,
+                        int[] seen, int stamp,
+                        int row, int col,
+                        int rowOffset, int colOffset,
+                        boolean[] ambiguous) {
+      int label = labels[MathUtils.rowColToIndex(row, col, width)];
+
+      if (label == EDGE_LABEL || seen[label] == stamp) {
+         return;
+      }
+      seen[label] = stamp;
+
+      // Nothing is known about what encloses a cut off blob.
+      // (Besides, the outside can't be inside of itself.)
+      if (ambiguous[label] || isCutOff(label)) {
+         return;
+      }
+
+      Blob kid = blobs.get(label);
+
+      row += rowOffset;
+      col += colOffset;
+      while (row >= 0 && row < height && col >= 0 && col < width) {
+         int hitLabel = labels[MathUtils.rowColToIndex(row, col, width)];
+
+         int parentLabel = NO_PARENT;
+         if (hitLabel != EDGE_LABEL && hitLabel != label) {
+            if (isCutOff(hitLabel)) {
+               if (blobs.get(hitLabel).isBlack()) {
+                  parentLabel = outsideLabel;
+               }
+            } else if (canEnclose(blobs.get(hitLabel), kid)) {
+               parentLabel = hitLabel;
+            }
+         }
+
+         if (parentLabel != NO_PARENT) {
+            vote(label, parentLabel, ambiguous);
+            return;
+         }
+
+         row += rowOffset;
+         col += colOffset;
+      }
+
+      boolean open = (row < 0 && openUp) || (row >= height && openDown) ||
+                     (col < 0 && openLeft) || (col >= width && openRight);
+      if (open && outsideLabel != NO_PARENT) {
+         vote(label, outsideLabel, ambiguous);
+      }
+   }
+
+   private void vote(int label, int parentLabel, boolean[] ambiguous) {
+      if (parents[label] == NO_PARENT) {
+         parents[label] = parentLabel;
+      } else if (parents[label] != parentLabel) {
+         // Found multiple surrounding blobs, this kid has no parents. :.(
+         ambiguous[label] = true;
+      }
+   }
+
+   /**
+    * A blob can only enclose blobs that it strictly contains.
+    * Being strict also keeps cycles out of the tree.
+    */
+   private static boolean canEnclose(Blob parent, Blob kid) {
+      return parent.contains(kid) && parent.getBoundingSize() > kid.getBoundingSize();
+   }
+
+   private boolean isCutOff(int label) {
+      return cutOff != null && cutOff[label];
+   }
+
+   /**
+    * Check if |blob| was marked as cut off (see the constructor).
+    * A cut off (black) parent stands in for all of the line art outside of the region.
+    */
+   public boolean isCutOff(Blob blob) {
+      return isCutOff(blob.getLabel());
+   }
+
+   private static void clear(int[] vals) {
+      for (int i = 0; i < vals.length; i++) {
+         vals[i] = 0;
+      }
+   }
+
+   public int numBlobs() {
+      return blobs.size();
+   }
+
+   public Blob getBlob(int label) {
+      return blobs.get(label);
+   }
+
+   /**
+    * Get the blob that directly encloses |blob|, or null if there is none.
+    */
+   public Blob getParent(Blob blob) {
+      int parent = parents[blob.getLabel()];
+      return parent == NO_PARENT ? null : blobs.get(parent);
+   }
+
+   /**
+    * Get the closest ancestor of |blob| that is in |candidates|.
+    * Returns null if no ancestor is a candidate.
+    */
+   public Blob findAncestor(Blob blob, Set<Blob> candidates) {
+      for (Blob current = getParent(blob); current != null; current = getParent(current)) {
+         if (candidates.contains(current)) {
+            return current;
+         }
+      }
+
+      return null;
+   }
+}
@@ -0,0 +1,199 @@
+package com.eriqaugustine.ocr.image;
+
+import com.eriqaugustine.ocr.math.BinaryConfusionMatrix;
+import com.eriqaugustine.ocr.utils.FileUtils;
+
+import magick.ImageInfo;
+import magick.MagickImage;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A repeatable benchmark for bubble detection.
+ * Runs detection over a bubble training set (see FileUtils.loadBubbleTrainingSet())
+ *  and reports, for every image and for the whole set:
+ *  precision/recall against the known bubbles, and
+ *  the time and allocation for every stage of detection (see DetectionProfile), and
+ *  how well the pyramid and streaming detection agree with the full page detection.
+ * Everything comes out as JSON so that runs can be compared.
+ *
+ * Usage: BubbleBenchmark [training set dir] [iterations] [output file]
+ */
+public class BubbleBenchmark {
+   public static final String DEFAULT_TRAINING_SET = "testImages/testSets/bubbleTrainingSet";
+   public static final int DEFAULT_ITERATIONS = 3;
+
+   // Untimed runs on each image before the timed ones (to let the JIT settle).
+   public static final int DEFAULT_WARMUP = 1;
+
+   public static void main(String[] args) throws Exception {
+      String trainingSet = args.length > 0 ? args[0] : DEFAULT_TRAINING_SET;
+      int iterations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS;
+
+      JSONObject results = run(trainingSet, DEFAULT_WARMUP, iterations);
+
+      if (args.length > 2) {
+         PrintWriter out = new PrintWriter(args[2], "UTF-8");
+         out.println(results.toString(2));
+         out.close();
+      } else {
+         System.out.println(results.toString(2));
+      }
+   }
+
+   /**
+    * Run the benchmark.
+    * Each image is decoded once, and then detection is run |warmup| + |iterations| times.
+    * Timings are the average of the last |iterations| runs.
+    */
+   public static JSONObject run(String trainingSetDir, int warmup, int iterations)
+         throws Exception {
+      assert(iterations > 0);
+
+      FileUtils.BubbleTrainingSet training = FileUtils.loadBubbleTrainingSet(trainingSetDir);
+
+      BinaryConfusionMatrix totalMatrix = new BinaryConfusionMatrix();
+      DetectionProfile totalProfile = new DetectionProfile();
+      double totalDecodeMs = 0;
+
+      JSONArray images = new JSONArray();
+
+      for (File imageFile : training.trainingFiles) {
+         long decodeStart = System.nanoTime();
+         MagickImage image = new MagickImage(new ImageInfo(imageFile.getAbsolutePath()));
+         Dimension dimensions = image.getDimension();
+         double decodeMs = (System.nanoTime() - decodeStart) / 1000000.0;
+
+         for (int i = 0; i < warmup; i++) {
+            BubbleDetection.getBubbles(image);
+         }
+
+         DetectionProfile profile = new DetectionProfile();
+         List<Blob> bubbles = null;
+         for (int i = 0; i < iterations; i++) {
+            bubbles = BubbleDetection.getBubbles(image, profile);
+         }
+
+         JSONObject imageResult = new JSONObject();
+         imageResult.put("file", imageFile.getName());
+         imageResult.put("width", dimensions.width);
+         imageResult.put("height", dimensions.height);
+         imageResult.put("decode_ms", decodeMs);
+         imageResult.put("bubbles", bubbles.size());
+         imageResult.put("stages", profile.toJSON());
+         imageResult.put("pyramid", agreement(bubbles,
+                                              BubbleDetection.getBubblesPyramid(image)));
+         imageResult.put("streaming", agreement(bubbles,
+                                                BubbleDetection.getBubblesStreaming(image)));
+
+         List<Point[]> bounds = training.trainingBubbles.get(imageFile.getName());
+         if (bounds != null) {
+            BinaryConfusionMatrix matrix = new BinaryConfusionMatrix();
+            BubbleDetection.scoreBubbles(bubbles, bounds, matrix);
+            BubbleDetection.scoreBubbles(bubbles, bounds, totalMatrix);
+
+            imageResult.put("accuracy", matrixToJSON(matrix));
+         }
+
+         images.put(imageResult);
+
+         totalProfile.add(profile);
+         totalDecodeMs += decodeMs;
+      }
+
+      JSONObject aggregate = new JSONObject();
+      aggregate.put("images", training.trainingFiles.size());
+      aggregate.put("decode_ms", totalDecodeMs);
+      aggregate.put("accuracy", matrixToJSON(totalMatrix));
+      aggregate.put("stages", totalProfile.toJSON());
+
+      JSONObject rtn = new JSONObject();
+      rtn.put("training_set", trainingSetDir);
+      rtn.put("warmup", warmup);
+      rtn.put("iterations", iterations);
+      rtn.put("images", images);
+      rtn.put("aggregate", aggregate);
+
+      return rtn;
+   }
+
+   /**
+    * How well |bubbles| agree with the full page detection (|expected|).
+    * A bubble only agrees if it has the exact same bounds as an expected bubble.
+    */
+   public static JSONObject agreement(List<Blob> expected, List<Blob> bubbles) {
+      Set<String> expectedBounds = new HashSet<String>();
+      for (Blob blob : expected) {
+         expectedBounds.add(boundsKey(blob));
+      }
+
+      Set<String> bubbleBounds = new HashSet<String>();
+      for (Blob blob : bubbles) {
+         bubbleBounds.add(boundsKey(blob));
+      }
+
+      JSONArray missed = new JSONArray();
+      for (Blob blob : expected) {
+         if (!bubbleBounds.contains(boundsKey(blob))) {
+            missed.put(boundsKey(blob));
+         }
+      }
+
+      JSONArray extra = new JSONArray();
+      int same = 0;
+      for (Blob blob : bubbles) {
+         if (expectedBounds.contains(boundsKey(blob))) {
+            same++;
+         } else {
+            extra.put(boundsKey(blob));
+         }
+      }
+
+      JSONObject rtn = new JSONObject();
+
+      rtn.put("expected", expected.size());
+      rtn.put("same", same);
+      rtn.put("missed", missed);
+      rtn.put("extra", extra);
+
+      return rtn;
+   }
+
+   private static String boundsKey(Blob blob) {
+      return String.format("[%d,%d,%d,%d]", blob.getMinRow(), blob.getMinCol(),
+                                            blob.getMaxRow(), blob.getMaxCol());
+   }
+
+   private static JSONObject matrixToJSON(BinaryConfusionMatrix matrix) {
+      JSONObject rtn = new JSONObject();
+
+      rtn.put("tp", matrix.numTruePositives());
+      rtn.put("fp", matrix.numFalsePositives());
+      rtn.put("fn", matrix.numFalseNegatives());
+      rtn.put("precision", finite(matrix.precision()));
+      rtn.put("recall", finite(matrix.recall()));
+      rtn.put("fscore", finite(matrix.fscore()));
+
+      return rtn;
+   }
+
+   /**
+    * JSON can't hold NaN (eg. precision with no predictions), so those are 0.
+    */
+   private static double finite(double value) {
+      if (Double.isNaN(value) || Double.isInfinite(value)) {
+         return 0;
+      }
+
+      return value;
+   }
+}
@@ -1,6 +1,7 @@
 package com.eriqaugustine.ocr.image;
 
 import com.eriqaugustine.ocr.math.BinaryConfusionMatrix;
+import com.eriqaugustine.ocr.utils.BufferPool;
 import com.eriqaugustine.ocr.utils.ColorUtils;
 import com.eriqaugustine.ocr.utils.FileUtils;
 import com.eriqaugustine.ocr.utils.MathUtils;
@@ -11,13 +12,14 @@ import magick.MagickImage;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 
@@ -53,6 +55,31 @@ public class BubbleDetection {
    private static final double MAX_CALLOUT_RATIO = 0.075;
    private static final double MAX_CALLOUT_BOUNDING_RATIO = 0.1;
 
+   // How much smaller each side of the page is for pyramid detection.
+   public static final int DEFAULT_PYRAMID_FACTOR = 2;
+
+   // How many rows streaming detection works on at a time.
+   public static final int DEFAULT_BAND_HEIGHT = 256;
+
+   // Preprocessing parameters.
+   private static final int BLUR_RADIUS = 3;
+   private static final double BLUR_SIGMA = 1.0;
+   private static final int BW_THRESHOLD = 200;
+   public static final Thresholder DEFAULT_THRESHOLDER = Thresholder.global(BW_THRESHOLD);
+   private static final int EDGE_RADIUS = 3;
+   private static final double MIN_BLUR_SIGMA = 0.5;
+
+   // Extra pixels around a region that is being refined at full resolution.
+   // This is enough so that the filters are not affected by the region's sides.
+   private static final int REFINE_MARGIN = BLUR_RADIUS + EDGE_RADIUS;
+
+   // How many times bigger (on each side) a refined region can get when the callout
+   //  runs off of it.
+   private static final int MAX_REFINE_GROWTH = 4;
+
+   // The label for pixels that have not been labeled yet.
+   private static final int UNLABELED = -2;
+
    /**
     * Run a detection test on the given image.
     * Reuse |matrix| for multiple images to get an overall score.
@@ -70,63 +97,136 @@ public class BubbleDetection {
 
       List<Blob> bubbles = getBubbles(image);
 
-      int foundCount = 0;
       List<Point[]> bounds = trainingData.trainingBubbles.get(baseImageName);
       if (bounds != null) {
-         for (Blob bubble : bubbles) {
-            boolean found = false;
-
-            for (Point[] trainingBounds : bounds) {
-               if (trainingBounds[0].y <= bubble.getMinRow() &&
-                   trainingBounds[1].y >= bubble.getMaxRow() &&
-                   trainingBounds[0].x <= bubble.getMinCol() &&
-                   trainingBounds[1].x >= bubble.getMaxCol()) {
-                  if (!found) {
-                     // TP
-                     foundCount++;
-                     found = true;
-                     matrix.truePositive();
-                  } else {
-                     // This blob was already marked
-                     // FP
-                     matrix.falsePositive();
-                  }
-               }
-            }
+         scoreBubbles(bubbles, bounds, matrix);
+      }
 
-            if (!found) {
-               // FP
-               matrix.falsePositive();
+      return colorBubbles(image, bubbles);
+   }
+
+   /**
+    * Score found bubbles against the known bubble bounds for an image.
+    * |bounds| is [[Upper Left, Lower Right], ...] (see FileUtils.BubbleTrainingSet).
+    * A bubble is a hit if it fits inside some known bounds.
+    */
+   public static void scoreBubbles(List<Blob> bubbles, List<Point[]> bounds,
+                                   BinaryConfusionMatrix matrix) {
+      int foundCount = 0;
+
+      for (Blob bubble : bubbles) {
+         boolean found = false;
+
+         for (Point[] trainingBounds : bounds) {
+            if (trainingBounds[0].y <= bubble.getMinRow() &&
+                trainingBounds[1].y >= bubble.getMaxRow() &&
+                trainingBounds[0].x <= bubble.getMinCol() &&
+                trainingBounds[1].x >= bubble.getMaxCol()) {
+               if (!found) {
+                  // TP
+                  foundCount++;
+                  found = true;
+                  matrix.truePositive();
+               } else {
+                  // This blob was already marked
+                  // FP
+                  matrix.falsePositive();
+               }
             }
          }
 
-         // The rest of the blobs were not found, they are FN.
-         for (int i = foundCount; i < bounds.size(); i++) {
-            matrix.falseNegative();
+         if (!found) {
+            // FP
+            matrix.falsePositive();
          }
       }
 
-      return colorBubbles(image, bubbles);
+      // The rest of the blobs were not found, they are FN.
+      for (int i = foundCount; i < bounds.size(); i++) {
+         matrix.falseNegative();
+      }
    }
 
    /**
     * Get the raw blobs that represent the bubbles.
     */
    public static List<Blob> getBubbles(MagickImage image) throws Exception {
-      image = image.blurImage(3, 1);
-      image = Filters.bw(image, 200);
+      return getBubbles(image, null);
+   }
 
-      byte[] rawPixels = Filters.averageChannels(Filters.bwPixels(image, 200), 3);
+   /**
+    * Same as above, but the time and allocation of each stage is added to |profile|
+    *  (if it is not null).
+    */
+   public static List<Blob> getBubbles(MagickImage image, DetectionProfile profile)
+         throws Exception {
+      startStage(profile, DetectionProfile.Stage.PREPROCESS);
 
-      image = image.edgeImage(3);
+      return getBubbles(GrayRaster.fromImage(image), profile);
+   }
 
-      Dimension dimensions = image.getDimension();
+   /**
+    * Get the raw blobs that represent the bubbles from a raster.
+    */
+   public static List<Blob> getBubbles(GrayRaster raster, DetectionProfile profile) {
+      return getBubbles(raster, DEFAULT_THRESHOLDER, profile);
+   }
+
+   public static List<Blob> getBubbles(GrayRaster raster) {
+      return getBubbles(raster, null);
+   }
+
+   /**
+    * Same as above, but |thresholder| decides what is black instead of the fixed threshold.
+    * Only the full page detection takes a thresholder, the pyramid and streaming detection
+    *  always use the fixed threshold.
+    */
+   public static List<Blob> getBubbles(GrayRaster raster, Thresholder thresholder,
+                                       DetectionProfile profile) {
+      startStage(profile, DetectionProfile.Stage.PREPROCESS);
+
+      byte[] grayPixels = raster.compact();
+
+      // None of the masks outlive detection, so they all go back to the pool.
+      BufferPool pool = BufferPool.shared();
+
+      byte[] thresholds = null;
+      int threshold = thresholder.getGlobalThreshold();
+      if (threshold < 0) {
+         thresholds = pool.leaseBytes(grayPixels.length);
+         thresholder.thresholds(raster, thresholds);
+      }
 
-      byte[] edgedPixels = Filters.averageChannels(Filters.bwPixels(image), 3);
+      byte[] rawPixels = pool.leaseBytes(grayPixels.length);
+      byte[] edgedPixels = pool.leaseBytes(grayPixels.length);
+
+      try {
+         Filters.bubbleMasks(grayPixels, raster.width, raster.height,
+                             BLUR_RADIUS, BLUR_SIGMA,
+                             threshold, thresholds,
+                             EDGE_RADIUS,
+                             rawPixels, edgedPixels);
+         pool.release(thresholds);
+         thresholds = null;
+
+         return getBubbles(raster.width, edgedPixels, rawPixels, profile);
+      } finally {
+         pool.release(thresholds);
+         pool.release(rawPixels);
+         pool.release(edgedPixels);
+      }
+   }
 
-      List<Blob> blobs = getBubbles(dimensions.width, edgedPixels, rawPixels);
+   /**
+    * Get the raw blobs that represent the bubbles from a single channel image.
+    * All the preprocessing (blur, threshold, edge) is done in a single pass in Java.
+    */
+   public static List<Blob> getBubbles(byte[] grayPixels, int width) {
+      return getBubbles(grayPixels, width, null);
+   }
 
-      return blobs;
+   public static List<Blob> getBubbles(byte[] grayPixels, int width, DetectionProfile profile) {
+      return getBubbles(new GrayRaster(grayPixels, width), DEFAULT_THRESHOLDER, profile);
    }
 
    /**
@@ -136,58 +236,35 @@ public class BubbleDetection {
       BubbleInfo[] bubbles = extractBubblesWithInfo(image);
       MagickImage[] images = new MagickImage[bubbles.length];
       for (int i = 0; i < bubbles.length; i++) {
-         images[i] = bubbles[i].image;
+         images[i] = bubbles[i].getImage();
       }
       return images;
    }
 
+   /**
+    * Find the bubbles and get a view for each one.
+    * The page is only pulled out of |image| once (and that is shared between detection
+    *  and all the views). No bubble pixels are copied until a view is asked for them.
+    */
    public static BubbleInfo[] extractBubblesWithInfo(MagickImage image) throws Exception {
-      List<Blob> bubbles = getBubbles(image);
-
-      Dimension dimensions = image.getDimension();
-      byte[] pixels = new byte[dimensions.width * dimensions.height * 3];
+      return extractBubblesWithInfo(Filters.rgbPixels(image), image.getDimension().width);
+   }
 
-      image.dispatchImage(0, 0,
-                          dimensions.width, dimensions.height,
-                          "RGB",
-                          pixels);
+   /**
+    * Same as above, but on RGB pixels (eg. from RasterIO), so JMagick is not needed.
+    * The bubbles keep a reference to |pixels|.
+    */
+   public static BubbleInfo[] extractBubblesWithInfo(byte[] pixels, int width) {
+      List<Blob> bubbles = getBubbles(GrayRaster.fromRGB(pixels, width));
 
       BubbleInfo[] infos = new BubbleInfo[bubbles.size()];
 
       int count = 0;
       for (Blob blob : bubbles) {
-         byte[] blobPixels = new byte[blob.getBoundingSize() * 3];
-         Map<Integer, int[]> bounds = blob.getBoundaries();
-
-         int width = blob.getBoundingWidth();
-
-         for (int row = blob.getMinRow(); row <= blob.getMaxRow(); row++) {
-            for (int col = blob.getMinCol(); col <= blob.getMaxCol(); col++) {
-               int baseImageIndex = 3 * (row * dimensions.width + col);
-               int baseBlobIndex = 3 *
-                                   ((row - blob.getMinRow()) * width + (col - blob.getMinCol()));
-
-               if (col < bounds.get(row)[0] || col > bounds.get(row)[1]) {
-                  blobPixels[baseBlobIndex + 0] = (byte)0xFF;
-                  blobPixels[baseBlobIndex + 1] = (byte)0xFF;
-                  blobPixels[baseBlobIndex + 2] = (byte)0xFF;
-               } else {
-                  blobPixels[baseBlobIndex + 0] = pixels[baseImageIndex + 0];
-                  blobPixels[baseBlobIndex + 1] = pixels[baseImageIndex + 1];
-                  blobPixels[baseBlobIndex + 2] = pixels[baseImageIndex + 2];
-               }
-            }
-         }
-
-         MagickImage blobImage = new MagickImage();
-         blobImage.constituteImage(blob.getBoundingWidth(),
-                                   blob.getBoundingHeight(),
-                                   "RGB",
-                                   blobPixels);
-
          infos[count++] = new BubbleInfo(blob.getMinRow(), blob.getMinCol(),
                                          blob.getBoundingWidth(), blob.getBoundingHeight(),
-                                         blobImage);
+                                         pixels, width,
+                                         blob.getOuterColumns());
       }
 
       return infos;
@@ -251,12 +328,40 @@ public class BubbleDetection {
    }
 
    /**
-    * Get all the blobs.
+    * Label all the blobs in |pixels|.
+    * Without a raw image, the black counts will just be based off of |pixels|.
+    */
+   private static List<Blob> labelBlobs(int width, byte[] pixels, int[] labels) {
+      return labelBlobs(width, pixels, pixels, labels);
+   }
+
+   /**
+    * Label all the blobs in |edgedPixels|.
+    * Every pixel gets its blob's label put in |labels| (BlobTree.EDGE_LABEL for edges).
+    * The returned blobs are indexed by their label and include the border blob.
+    * All the statistics for a blob (size, bounds, black count from |rawPixels|,
+    *  border contact, and perimeter) are collected in this same sweep
+    *  so that nobody needs to revisit the points later.
+    */
+   private static List<Blob> labelBlobs(int width, byte[] edgedPixels, byte[] rawPixels,
+                                        int[] labels) {
+      assert(edgedPixels.length == rawPixels.length);
+      assert(edgedPixels.length == labels.length);
+
+      return labelBlobs(width, labels.length, edgedPixels, rawPixels, labels);
+   }
+
+   /**
+    * Same as above, but only the first |numPixels| of the buffers are used.
+    * This lets the same buffers be reused for regions of different sizes.
     */
-   private static List<Blob> getRawBlobs(int width, byte[] pixels) {
+   private static List<Blob> labelBlobs(int width, int numPixels,
+                                        byte[] edgedPixels, byte[] rawPixels, int[] labels) {
+      assert(edgedPixels.length >= numPixels && rawPixels.length >= numPixels);
+      assert(labels.length >= numPixels);
+
       List<Blob> allBlobs = new ArrayList<Blob>();
 
-      boolean[] visited = new boolean[pixels.length];
       Queue<Integer> toVisit = new LinkedList<Integer>();
 
       // All the offsets to check for blobs.
@@ -264,143 +369,573 @@ public class BubbleDetection {
       int[] offsets = {-1, 1,
                        -1 * width, 1 * width};
 
-      // Fill the visited pixels with edges.
-      for (int i = 0; i < visited.length; i++) {
-         if ((0xFF & pixels[i]) == 255) {
-            visited[i] = true;
+      // Mark the edges, everything else is waiting for a label.
+      for (int i = 0; i < numPixels; i++) {
+         if ((0xFF & edgedPixels[i]) == 255) {
+            labels[i] = BlobTree.EDGE_LABEL;
+         } else {
+            labels[i] = UNLABELED;
          }
       }
 
       // Depth-first w.r.t. blobs.
-      for (int i = 0; i < visited.length; i++) {
-         if (visited[i]) {
+      for (int i = 0; i < numPixels; i++) {
+         if (labels[i] != UNLABELED) {
             continue;
          }
 
+         int label = allBlobs.size();
+
          // Keep track of the dimensions of the blob for density calculations.
-         Blob blob = new Blob(visited.length, width);
+         Blob blob = new Blob(numPixels, width);
+         blob.setLabel(label);
+         int perimeter = 0;
 
          toVisit.add(new Integer(i));
-         visited[i] = true;
+         labels[i] = label;
 
-         blob.addPoint(i);
+         blob.addPoint(i, rawPixels[i] == 0);
 
          while (!toVisit.isEmpty()) {
             int index = toVisit.remove().intValue();
 
             // Check all neighbors
-            // No need to check color, only visited is necessary
-            //  since the edges have already been marked as visited.
+            // No need to check color, only the label is necessary
+            //  since the edges have already been labeled.
             for (int offset : offsets) {
                int newIndex = index + offset;
-               if (inBoundsAdjacent(index, newIndex, width, visited.length) &&
-                   !visited[newIndex]) {
+               if (!inBoundsAdjacent(index, newIndex, width, numPixels)) {
+                  // Off the side of the image.
+                  perimeter++;
+               } else if (labels[newIndex] == BlobTree.EDGE_LABEL) {
+                  // Up against an edge.
+                  perimeter++;
+               } else if (labels[newIndex] == UNLABELED) {
                   toVisit.add(newIndex);
 
-                  // Mark as visited a little early so that it is not added multiple times.
-                  visited[newIndex] = true;
+                  // Label a little early so that it is not added multiple times.
+                  labels[newIndex] = label;
 
-                  blob.addPoint(newIndex);
+                  blob.addPoint(newIndex, rawPixels[newIndex] == 0);
                }
             }
          }
 
+         blob.setPerimeter(perimeter);
+         blob.setLabelMap(labels);
+         allBlobs.add(blob);
+      }
+
+      return allBlobs;
+   }
+
+   /**
+    * Get all the blobs that are not the border blob.
+    */
+   private static List<Blob> withoutBorderBlobs(List<Blob> blobs) {
+      List<Blob> rtn = new ArrayList<Blob>(blobs.size());
+
+      for (Blob blob : blobs) {
          if (!blob.isBorderBlob()) {
-            allBlobs.add(blob);
+            rtn.add(blob);
          }
       }
 
-      return allBlobs;
+      return rtn;
    }
 
    /**
     * Get the bubbles (callouts with text).
     */
    private static List<Blob> getBubbles(int width, byte[] edgedPixels,
-                                        byte[] rawPixels) {
+                                        byte[] rawPixels, DetectionProfile profile) {
       assert(edgedPixels.length == rawPixels.length);
 
-      List<Blob> allBlobs = getRawBlobs(width, edgedPixels);
+      startStage(profile, DetectionProfile.Stage.LABELING);
 
-      // Blobs for possible colors.
-      List<Blob> characterBlobs = new ArrayList<Blob>();
-      // Blobs for callout candidates.
-      List<Blob> candidateBlobs = new ArrayList<Blob>();
-      // Any blob that is black
-      Set<Blob> blackBlobs = new HashSet<Blob>();
+      int[] labels = new int[edgedPixels.length];
+      List<Blob> labeledBlobs = labelBlobs(width, edgedPixels, rawPixels, labels);
+      BlobTree tree = new BlobTree(labeledBlobs, labels, width);
 
-      int numPixels = edgedPixels.length;
+      List<Blob> allBlobs = withoutBorderBlobs(labeledBlobs);
 
-      int minCharPixels = (int)(numPixels * MIN_CHARACTER_RATIO);
-      int maxCharPixels = (int)(numPixels * MAX_CHARACTER_RATIO);
-      int maxCharBoundingLengthPixels = (int)(numPixels * MAX_CHARACTER_BOUNDING_LENGTH_RATIO);
+      int numPixels = edgedPixels.length;
 
-      int minCalloutPixels = (int)(numPixels * MIN_CALLOUT_RATIO);
-      int maxCalloutPixels = (int)(numPixels * MAX_CALLOUT_RATIO);
-      int maxCalloutBoundingPixels = (int)(numPixels * MAX_CALLOUT_BOUNDING_RATIO);
+      startStage(profile, DetectionProfile.Stage.CLASSIFICATION);
 
-      // Get all blobs that are black.
+      // Note that whether or not a blob is black was already figured out during labeling.
       // We need this because callout candidates need to the surrounded by
       // a single black block.
-      for (Blob blob : allBlobs) {
-         int blackCount = 0;
-         for (Integer point : blob.getPoints()) {
-            if (rawPixels[point.intValue()] == 0) {
-               blackCount++;
-            }
-         }
+      List<Blob> characterBlobs = getCharacterCandidates(allBlobs, numPixels);
+      List<Blob> candidateBlobs = getCalloutCandidates(allBlobs, numPixels);
 
-         if (blackCount >= blob.size() / 2) {
-            blackBlobs.add(blob);
-         }
+      startStage(profile, DetectionProfile.Stage.PARENTAGE);
+
+      // Resolve the parentage of the callout candidates.
+      resolveParentage(candidateBlobs, tree);
+
+      // Only keep candidates that have a black parent.
+      removeUnparented(candidateBlobs);
+
+      // Find the parentage for character candidates and callout candidates.
+      quickResolveParentage(characterBlobs, candidateBlobs, tree);
+
+      // Only keep candidates with character kids.
+      removeChildless(candidateBlobs);
+
+      if (profile != null) {
+         profile.endRun();
       }
 
-      for (Blob blob : allBlobs) {
+      return candidateBlobs;
+   }
+
+   private static void startStage(DetectionProfile profile, DetectionProfile.Stage stage) {
+      if (profile != null) {
+         profile.start(stage);
+      }
+   }
+
+   /**
+    * Get the blobs that could be characters.
+    * |numPixels| is the size of the full page (the ratios are based off of that).
+    */
+   private static List<Blob> getCharacterCandidates(List<Blob> blobs, int numPixels) {
+      List<Blob> characterBlobs = new ArrayList<Blob>();
+
+      int minCharPixels = (int)(numPixels * MIN_CHARACTER_RATIO);
+      int maxCharPixels = (int)(numPixels * MAX_CHARACTER_RATIO);
+      int maxCharBoundingLengthPixels = (int)(numPixels * MAX_CHARACTER_BOUNDING_LENGTH_RATIO);
+
+      for (Blob blob : blobs) {
          if (blob.size() >= minCharPixels &&
              blob.size() <= maxCharPixels &&
              blob.getBoundingWidth() <= maxCharBoundingLengthPixels &&
              blob.getBoundingHeight() <= maxCharBoundingLengthPixels &&
              // Character pixels must be black.
-             blackBlobs.contains(blob)) {
+             blob.isBlack()) {
             characterBlobs.add(blob);
-         } else if (blob.size() >= minCalloutPixels &&
-                    blob.size() <= maxCalloutPixels &&
-                    blob.getBoundingSize() <= maxCalloutBoundingPixels &&
-                    // Callout pixels must be white.
-                    !blackBlobs.contains(blob)) {
+         }
+      }
+
+      return characterBlobs;
+   }
+
+   /**
+    * Get the blobs that could be callouts.
+    * A blob that could be a character is never a callout candidate.
+    * |numPixels| is the size of the full page (the ratios are based off of that).
+    */
+   private static List<Blob> getCalloutCandidates(List<Blob> blobs, int numPixels) {
+      List<Blob> candidateBlobs = new ArrayList<Blob>();
+
+      for (Blob blob : blobs) {
+         if (isCalloutCandidate(blob.size(), blob.getBoundingSize(), blob.isBlack(),
+                                numPixels)) {
             candidateBlobs.add(blob);
          }
       }
 
-      // Resolve the parentage of the callout candidates.
-      resolveParentage(candidateBlobs, allBlobs, edgedPixels, width);
+      return candidateBlobs;
+   }
 
-      // Only keep candidates that have a black parent.
+   /**
+    * Check the size and color of something that could be a callout.
+    */
+   private static boolean isCalloutCandidate(int size, int boundingSize, boolean black,
+                                             int numPixels) {
+      return size >= (int)(numPixels * MIN_CALLOUT_RATIO) &&
+             size <= (int)(numPixels * MAX_CALLOUT_RATIO) &&
+             boundingSize <= (int)(numPixels * MAX_CALLOUT_BOUNDING_RATIO) &&
+             // Callout pixels must be white.
+             !black;
+   }
+
+   /**
+    * Remove all the candidates that do not have a black parent.
+    */
+   private static void removeUnparented(List<Blob> candidateBlobs) {
       int index = 0;
       while (index < candidateBlobs.size()) {
          if (candidateBlobs.get(index).getParent() == null ||
-             !blackBlobs.contains(candidateBlobs.get(index).getParent())) {
+             !candidateBlobs.get(index).getParent().isBlack()) {
             candidateBlobs.remove(index);
          } else {
             index++;
          }
       }
+   }
 
-      // Find the parentage for character candidates and callout candidates.
-      quickResolveParentage(characterBlobs, candidateBlobs);
-
-      // Only keep candidates with character kids.
-      index = 0;
+   /**
+    * Remove all the candidates that do not have character kids.
+    * Kids only come from the tree (quickResolveParentage()), so they are always enclosed.
+    */
+   private static void removeChildless(List<Blob> candidateBlobs) {
+      int index = 0;
       while (index < candidateBlobs.size()) {
-         if (candidateBlobs.get(index).numChildren() == 0 ||
-             candidateBlobs.get(index).numSurroundedChildren() == 0) {
+         if (candidateBlobs.get(index).numChildren() == 0) {
             candidateBlobs.remove(index);
          } else {
             index++;
          }
       }
+   }
 
-      return candidateBlobs;
+   /**
+    * Get the bubbles using a pyramid.
+    * Callouts are big, so the callout candidates (and their black parents) are found on
+    *  a copy of the page that is |factor| times smaller on each side.
+    * Then each candidate is refined at full resolution, but only inside of its own
+    *  region of interest. Characters are also only looked for in there.
+    * So, most of the full resolution work is proportional to the bubble area
+    *  instead of the page area.
+    * A refined bubble is the same one that getBubbles() finds, but callouts with thin
+    *  outlines can close up on the small page and never become candidates
+    *  (the bigger the |factor|, the more that are lost).
+    */
+   public static List<Blob> getBubblesPyramid(MagickImage image, int factor) throws Exception {
+      Dimension dimensions = image.getDimension();
+      return getBubblesPyramid(Filters.grayPixels(image), dimensions.width, factor);
+   }
+
+   public static List<Blob> getBubblesPyramid(MagickImage image) throws Exception {
+      return getBubblesPyramid(image, DEFAULT_PYRAMID_FACTOR);
+   }
+
+   public static List<Blob> getBubblesPyramid(byte[] grayPixels, int width, int factor)
+         throws Exception {
+      int height = grayPixels.length / width;
+      int smallWidth = width / factor;
+      int smallHeight = height / factor;
+
+      // Too small to bother.
+      if (factor <= 1 || smallWidth == 0 || smallHeight == 0) {
+         return getBubbles(grayPixels, width);
+      }
+
+      byte[] smallPixels = Filters.downsample(grayPixels, width, factor);
+
+      // The filters need to shrink along with the image.
+      byte[] smallRaw = new byte[smallPixels.length];
+      byte[] smallEdged = new byte[smallPixels.length];
+      Filters.bubbleMasks(smallPixels, smallWidth,
+                          Math.max(1, BLUR_RADIUS / factor),
+                          Math.max(MIN_BLUR_SIGMA, BLUR_SIGMA / factor),
+                          BW_THRESHOLD,
+                          Math.max(1, EDGE_RADIUS / factor),
+                          smallRaw, smallEdged);
+
+      int[] smallLabels = new int[smallPixels.length];
+      List<Blob> smallBlobs = labelBlobs(smallWidth, smallEdged, smallRaw, smallLabels);
+      BlobTree smallTree = new BlobTree(smallBlobs, smallLabels, smallWidth);
+
+      // Ratios are on area, so they work just as well on the small page.
+      List<Blob> candidateBlobs = getCalloutCandidates(withoutBorderBlobs(smallBlobs),
+                                                       smallPixels.length);
+      resolveParentage(candidateBlobs, smallTree);
+      removeUnparented(candidateBlobs);
+
+      GraySource source = GraySource.fromPixels(grayPixels, width);
+      int margin = factor + REFINE_MARGIN;
+
+      List<Blob> bubbles = new ArrayList<Blob>();
+      for (Blob candidate : candidateBlobs) {
+         // The center of each small pixel gets a vote.
+         int[] seeds = new int[candidate.size()];
+         int index = 0;
+         for (Integer point : candidate.getPoints()) {
+            int row = MathUtils.indexToRow(point.intValue(), smallWidth) * factor + factor / 2;
+            int col = MathUtils.indexToCol(point.intValue(), smallWidth) * factor + factor / 2;
+            seeds[index++] = MathUtils.rowColToIndex(row, col, width);
+         }
+
+         Blob bubble = refineRegion(source,
+                                    candidate.getMinRow() * factor - margin,
+                                    (candidate.getMaxRow() + 1) * factor - 1 + margin,
+                                    candidate.getMinCol() * factor - margin,
+                                    (candidate.getMaxCol() + 1) * factor - 1 + margin,
+                                    seeds);
+
+         if (bubble != null && !alreadyFound(bubbles, bubble)) {
+            bubbles.add(bubble);
+         }
+      }
+
+      return bubbles;
+   }
+
+   /**
+    * Check if |bubble| was already found (by another candidate).
+    * Bubbles never overlap, so sharing a single point is enough.
+    */
+   private static boolean alreadyFound(List<Blob> bubbles, Blob bubble) {
+      int point = bubble.getSinglePoint();
+
+      for (Blob found : bubbles) {
+         if (found.contains(point)) {
+            return true;
+         }
+      }
+
+      return false;
+   }
+
+   /**
+    * Get the bubbles while only holding a band of the page at a time.
+    * The page is read, filtered, and labeled |bandHeight| rows at a time
+    *  (the labels for the last row are carried into the next band).
+    * Only the statistics for the big blobs are kept, and the ones that look like callouts
+    *  are refined in their own region (just like the pyramid).
+    * So, the memory used is about |bandHeight| * width plus the size of a single callout.
+    */
+   public static List<Blob> getBubblesStreaming(MagickImage image, int bandHeight)
+         throws Exception {
+      return getBubblesStreaming(GraySource.fromImage(image), bandHeight);
+   }
+
+   public static List<Blob> getBubblesStreaming(MagickImage image) throws Exception {
+      return getBubblesStreaming(image, DEFAULT_BAND_HEIGHT);
+   }
+
+   public static List<Blob> getBubblesStreaming(GraySource source, int bandHeight)
+         throws Exception {
+      int width = source.getWidth();
+      int height = source.getHeight();
+      int numPixels = width * height;
+
+      // Enough extra rows on each side of a band so that the band's masks come out
+      //  exactly the same as if the whole page was filtered.
+      int halo = BLUR_RADIUS + EDGE_RADIUS;
+      int maxRows = Math.min(height, bandHeight + 2 * halo);
+
+      BufferPool pool = BufferPool.shared();
+      byte[] grayPixels = pool.leaseBytes(maxRows * width);
+      byte[] rawPixels = pool.leaseBytes(maxRows * width);
+      byte[] edgedPixels = pool.leaseBytes(maxRows * width);
+
+      StreamingLabeler labeler =
+            new StreamingLabeler(width, height, (int)(numPixels * MIN_CALLOUT_RATIO));
+
+      try {
+         for (int bandStart = 0; bandStart < height; bandStart += bandHeight) {
+            int bandEnd = Math.min(height, bandStart + bandHeight);
+            int readStart = Math.max(0, bandStart - halo);
+            int readEnd = Math.min(height, bandEnd + halo);
+
+            source.readRows(readStart, readEnd - readStart, grayPixels);
+            Filters.bubbleMasks(grayPixels, width, readEnd - readStart,
+                                BLUR_RADIUS, BLUR_SIGMA,
+                                BW_THRESHOLD,
+                                EDGE_RADIUS,
+                                rawPixels, edgedPixels);
+
+            for (int row = bandStart; row < bandEnd; row++) {
+               labeler.addRow(edgedPixels, rawPixels, (row - readStart) * width);
+            }
+         }
+      } finally {
+         // Let go of the band before refining.
+         pool.release(grayPixels);
+         pool.release(rawPixels);
+         pool.release(edgedPixels);
+      }
+
+      List<Blob> bubbles = new ArrayList<Blob>();
+      for (StreamingLabeler.Component component : labeler.finish()) {
+         if (component.isBorderBlob() ||
+             !isCalloutCandidate(component.size, component.getBoundingSize(),
+                                 component.isBlack(), numPixels)) {
+            continue;
+         }
+
+         Blob bubble = refineRegion(source,
+                                    component.minRow - REFINE_MARGIN,
+                                    component.maxRow + REFINE_MARGIN,
+                                    component.minCol - REFINE_MARGIN,
+                                    component.maxCol + REFINE_MARGIN,
+                                    new int[]{MathUtils.rowColToIndex(component.seedRow,
+                                                                      component.seedCol,
+                                                                      width)});
+
+         if (bubble != null) {
+            bubbles.add(bubble);
+         }
+      }
+
+      return bubbles;
+   }
+
+   /**
+    * Find the actual callout (with characters) at full resolution in a region
+    *  of the page (the bounds are inclusive and get clipped to the page).
+    * |seeds| are page indexes that should land in the callout, they vote on which
+    *  blob in the region is the callout.
+    * Only the region is read, filtered, and labeled.
+    * Returns null if the region does not have a callout.
+    * The returned blob is in full page coordinates.
+    *
+    * The callout is judged the same way that getBubbles() judges it on the whole page.
+    * Blobs that run off of the region (the parent almost always does, it is usually
+    *  the line art for the whole page) are marked as cut off in the containment tree,
+    *  so they stand in for the rest of the page instead of getting the wrong bounds
+    *  (see BlobTree). If the callout itself runs off of the region,
+    *  then the region is grown and tried again.
+    * The region only grows up to MAX_REFINE_GROWTH times its original size on each side
+    *  (otherwise a seed that landed in the background would end up labeling the whole page),
+    *  and not at all once the cut off piece is already too big to be a callout.
+    */
+   private static Blob refineRegion(GraySource source,
+                                    int minRow, int maxRow, int minCol, int maxCol,
+                                    int[] seeds) throws Exception {
+      int width = source.getWidth();
+      int height = source.getHeight();
+      int numPixels = width * height;
+
+      minRow = Math.max(0, minRow);
+      maxRow = Math.min(height - 1, maxRow);
+      minCol = Math.max(0, minCol);
+      maxCol = Math.min(width - 1, maxCol);
+
+      // The furthest that the region can grow.
+      int growRows = (MAX_REFINE_GROWTH - 1) * (maxRow - minRow + 1) / 2;
+      int growCols = (MAX_REFINE_GROWTH - 1) * (maxCol - minCol + 1) / 2;
+      int limitMinRow = Math.max(0, minRow - growRows);
+      int limitMaxRow = Math.min(height - 1, maxRow + growRows);
+      int limitMinCol = Math.max(0, minCol - growCols);
+      int limitMaxCol = Math.min(width - 1, maxCol + growCols);
+
+      // Sized for the first region, and then for the biggest one if the region has to grow.
+      // The labels are only read in here, so they can be reused too.
+      int bufferSize = (maxRow - minRow + 1) * (maxCol - minCol + 1);
+      byte[] roiPixels = new byte[bufferSize];
+      byte[] roiRaw = new byte[bufferSize];
+      byte[] roiEdged = new byte[bufferSize];
+      int[] labels = new int[bufferSize];
+
+      while (true) {
+         int roiWidth = maxCol - minCol + 1;
+         int roiHeight = maxRow - minRow + 1;
+         Rectangle roi = new Rectangle(minCol, minRow, roiWidth, roiHeight);
+
+         source.readRegion(minRow, minCol, roiWidth, roiHeight, roiPixels);
+         Filters.bubbleMasks(roiPixels, roiWidth, roiHeight,
+                             BLUR_RADIUS, BLUR_SIGMA,
+                             BW_THRESHOLD,
+                             EDGE_RADIUS,
+                             roiRaw, roiEdged);
+
+         List<Blob> blobs = labelBlobs(roiWidth, roiWidth * roiHeight,
+                                       roiEdged, roiRaw, labels);
+
+         Blob bubble = voteForBlob(blobs, labels, roi, width, seeds);
+         if (bubble == null) {
+            return null;
+         }
+
+         boolean[] cutOff = new boolean[blobs.size()];
+         for (int i = 0; i < cutOff.length; i++) {
+            cutOff[i] = isCutOff(blobs.get(i), roi, width, height);
+         }
+
+         if (cutOff[bubble.getLabel()]) {
+            // A bigger region only makes it bigger.
+            if (bubble.size() > (int)(numPixels * MAX_CALLOUT_RATIO) ||
+                bubble.getBoundingSize() > (int)(numPixels * MAX_CALLOUT_BOUNDING_RATIO)) {
+               return null;
+            }
+
+            if (minRow == limitMinRow && maxRow == limitMaxRow &&
+                minCol == limitMinCol && maxCol == limitMaxCol) {
+               return null;
+            }
+
+            // Grow by half of the region on every side.
+            minRow = Math.max(limitMinRow, minRow - roiHeight / 2 - REFINE_MARGIN);
+            maxRow = Math.min(limitMaxRow, maxRow + roiHeight / 2 + REFINE_MARGIN);
+            minCol = Math.max(limitMinCol, minCol - roiWidth / 2 - REFINE_MARGIN);
+            maxCol = Math.min(limitMaxCol, maxCol + roiWidth / 2 + REFINE_MARGIN);
+
+            int limitSize = (limitMaxRow - limitMinRow + 1) * (limitMaxCol - limitMinCol + 1);
+            if (bufferSize < limitSize) {
+               bufferSize = limitSize;
+               roiPixels = new byte[bufferSize];
+               roiRaw = new byte[bufferSize];
+               roiEdged = new byte[bufferSize];
+               labels = new int[bufferSize];
+            }
+
+            continue;
+         }
+
+         BlobTree tree = new BlobTree(blobs, labels, roi, width, height, cutOff);
+
+         // From here on, this is just getBubbles() on the region.
+         List<Blob> candidateBlobs = getCalloutCandidates(withoutBorderBlobs(blobs), numPixels);
+         if (!candidateBlobs.contains(bubble)) {
+            return null;
+         }
+
+         resolveParentage(candidateBlobs, tree);
+         removeUnparented(candidateBlobs);
+         if (!candidateBlobs.contains(bubble)) {
+            return null;
+         }
+
+         // Characters go to their closest candidate, so the other candidates have to
+         //  be there too (a character in a smaller callout inside of this one is not ours).
+         quickResolveParentage(getCharacterCandidates(withoutBorderBlobs(blobs), numPixels),
+                               candidateBlobs, tree);
+         if (bubble.numChildren() == 0) {
+            return null;
+         }
+
+         return bubble.translate(minRow, minCol, numPixels, width);
+      }
+   }
+
+   /**
+    * Get the blob in a region that the most of |seeds| (page indexes) land in.
+    * Returns null if none of them land in a blob.
+    */
+   private static Blob voteForBlob(List<Blob> blobs, int[] labels, Rectangle roi,
+                                   int pageWidth, int[] seeds) {
+      int[] votes = new int[blobs.size()];
+      int bestLabel = -1;
+
+      for (int seed : seeds) {
+         int row = MathUtils.indexToRow(seed, pageWidth) - roi.y;
+         int col = MathUtils.indexToCol(seed, pageWidth) - roi.x;
+
+         if (row < 0 || row >= roi.height || col < 0 || col >= roi.width) {
+            continue;
+         }
+
+         int label = labels[MathUtils.rowColToIndex(row, col, roi.width)];
+         if (label == BlobTree.EDGE_LABEL) {
+            continue;
+         }
+
+         votes[label]++;
+         if (bestLabel == -1 || votes[label] > votes[bestLabel]) {
+            bestLabel = label;
+         }
+      }
+
+      return bestLabel == -1 ? null : blobs.get(bestLabel);
+   }
+
+   /**
+    * Check if a blob (in region coordinates) is close enough to a side of |roi|
+    *  that it may keep going past it (or that the filters treated it differently).
+    * The sides of the page don't count, there is nothing past them.
+    */
+   private static boolean isCutOff(Blob blob, Rectangle roi, int pageWidth, int pageHeight) {
+      return (roi.y != 0 && blob.getMinRow() < REFINE_MARGIN) ||
+             (roi.x != 0 && blob.getMinCol() < REFINE_MARGIN) ||
+             (roi.y + roi.height != pageHeight &&
+              blob.getMaxRow() >= roi.height - REFINE_MARGIN) ||
+             (roi.x + roi.width != pageWidth &&
+              blob.getMaxCol() >= roi.width - REFINE_MARGIN);
    }
 
    /**
@@ -408,7 +943,11 @@ public class BubbleDetection {
     * (Old version for reference).
     */
    private static List<Blob> getBubblesOld(int width, byte[] pixels) {
-      List<Blob> allBlobs = getRawBlobs(width, pixels);
+      int[] labels = new int[pixels.length];
+      List<Blob> labeledBlobs = labelBlobs(width, pixels, labels);
+      BlobTree tree = new BlobTree(labeledBlobs, labels, width);
+
+      List<Blob> allBlobs = withoutBorderBlobs(labeledBlobs);
 
       // Blobs for possible colors.
       List<Blob> characterBlobs = new ArrayList<Blob>();
@@ -430,7 +969,7 @@ public class BubbleDetection {
       }
 
       // Find children (character candidates) for candidate blobs.
-      quickResolveParentage(characterBlobs, candidateBlobs);
+      quickResolveParentage(characterBlobs, candidateBlobs, tree);
 
       // Check the candidate blobs.
       // Callouts must contain characters.
@@ -442,11 +981,9 @@ public class BubbleDetection {
             continue;
          }
 
+         // The kids came from the tree, so they are already enclosed.
          if (candidate.density(true) > 0.60) {
-            int numSurroundedKids = candidate.numSurroundedChildren();
-            if (numSurroundedKids > 0) {
-               calloutBlobs.add(candidate);
-            }
+            calloutBlobs.add(candidate);
          }
       }
 
@@ -469,65 +1006,17 @@ public class BubbleDetection {
 
    /**
     * Resolve the parentage of the kid blobs.
-    * This one is expensive, but will find the optimal parent.
     * To be a parent, a blob must completley surround a child.
+    * The hard work was already done when |tree| was built, so this is just a lookup.
+    * The border blob is never a parent, unless it is cut off (then it is just standing
+    *  in for the rest of the page, see BlobTree).
     */
-   private static void resolveParentage(List<Blob> kids,
-                                        List<Blob> possibleParents,
-                                        byte[] edgedPixels,
-                                        int imageWidth) {
+   private static void resolveParentage(List<Blob> kids, BlobTree tree) {
       for (Blob kidCandidate : kids) {
-         int[][] outline = kidCandidate.approximateOutline();
-         Blob parentCandidate = null;
-         boolean done = false;
-
-         for (int i = 0; i < outline.length; i++) {
-            int[] offsets = new int[2];
-            // Invert the offset so we are going away from the outline.
-            offsets[0] = -1 * Blob.DIRECTIONAL_OFFSETS[i][0];
-            offsets[1] = -1 * Blob.DIRECTIONAL_OFFSETS[i][1];
-
-            // Move down a side.
-            for (int base : outline[i]) {
-               int index = MathUtils.indexOffset(base, offsets[0], offsets[1], imageWidth);
-
-               // Move out from the outline.
-               while (inBoundsAdjacent(base, index, imageWidth, edgedPixels.length)) {
-                  if (edgedPixels[index] == 0) {
-                     // Found another blob.
-                     Blob blob = getBlobWithPixel(possibleParents, index);
-
-                     if (blob != null) {
-                        if (parentCandidate == null) {
-                           parentCandidate = blob;
-                           break;
-                        } else if (blob.getId() != parentCandidate.getId()) {
-                           // Found multiple surrounding blobs, this kid has no parents. :.(
-                           done = true;
-                           parentCandidate = null;
-                           break;
-                        } else {
-                           break;
-                        }
-                     }
-                  }
-
-                  // Move index and base.
-                  base = MathUtils.indexOffset(base, offsets[0], offsets[1], imageWidth);
-                  index = MathUtils.indexOffset(index, offsets[0], offsets[1], imageWidth);
-               }
+         Blob parentCandidate = tree.getParent(kidCandidate);
 
-               if (done) {
-                  break;
-               }
-            }
-
-            if (done) {
-               break;
-            }
-         }
-
-         if (parentCandidate != null) {
+         if (parentCandidate != null &&
+             (!parentCandidate.isBorderBlob() || tree.isCutOff(parentCandidate))) {
             // Adopt!
             parentCandidate.addChild(kidCandidate);
             kidCandidate.setParent(parentCandidate);
@@ -535,37 +1024,17 @@ public class BubbleDetection {
       }
    }
 
-   private static Blob getBlobWithPixel(List<Blob> blobs, int index) {
-      for (Blob blob : blobs) {
-         if (blob.contains(index)) {
-            return blob;
-         }
-      }
-
-      return null;
-   }
-
    /**
     * Resolve the parentage of the kid blobs.
-    * Uses contains() (really avgContainingDistance()).
-    * Because of contains(), this is a quick approximation.
-    * Use resolveParentage() for more accurate results (at a computational cost).
+    * A kid's parent is its closest ancestor in |tree| that is one of |possibleParents|.
     */
    private static void quickResolveParentage(List<Blob> kids,
-                                             List<Blob> possibleParents) {
+                                             List<Blob> possibleParents,
+                                             BlobTree tree) {
+      Set<Blob> parentSet = new HashSet<Blob>(possibleParents);
+
       for (Blob kidCandidate : kids) {
-         double minContainingDist = Integer.MAX_VALUE;
-         Blob parent = null;
-
-         // Get the closest containing blob.
-         for (Blob parentCandidate : possibleParents) {
-            double containingDist = parentCandidate.avgContainingDistance(kidCandidate);
-            if (containingDist > 0 &&
-                (parent == null || containingDist < minContainingDist)) {
-               minContainingDist = containingDist;
-               parent = parentCandidate;
-            }
-         }
+         Blob parent = tree.findAncestor(kidCandidate, parentSet);
 
          if (parent != null) {
             parent.addChild(kidCandidate);
@@ -590,21 +1059,155 @@ public class BubbleDetection {
    }
 
    /**
-    * A container for information about bubbles.
+    * A view of a single bubble on a page.
+    * This is just the bounds of the bubble, the columns that the bubble covers on each row,
+    *  and a reference to the page's pixels (RGB).
+    * Pixels outside of the bubble's row spans come out white.
+    * Nothing is copied until getPixels() or getImage() is called.
+    * Note that the page's pixels are kept alive as long as any view of it is.
     */
    public static class BubbleInfo {
       public final int startRow;
       public final int startCol;
       public final int width;
       public final int height;
-      public final MagickImage image;
 
-      public BubbleInfo(int startRow, int startCol, int width, int height, MagickImage image) {
+      private final byte[] pagePixels;
+      private final int pageWidth;
+
+      // [start col, end col] (page columns, inclusive) for every row of the bubble.
+      private final int[][] spans;
+
+      private MagickImage image;
+
+      public BubbleInfo(int startRow, int startCol, int width, int height,
+                        byte[] pagePixels, int pageWidth, int[][] spans) {
+         assert(spans.length == height);
+
          this.startRow = startRow;
          this.startCol = startCol;
          this.width = width;
          this.height = height;
-         this.image = image;
+         this.pagePixels = pagePixels;
+         this.pageWidth = pageWidth;
+         this.spans = spans;
+
+         image = null;
+      }
+
+      /**
+       * Get the [start col, end col] that the bubble covers on a row (relative to the page).
+       * |row| is relative to the bubble.
+       */
+      public int[] getSpan(int row) {
+         return spans[row];
+      }
+
+      /**
+       * Copy the bubble's pixels (RGB) into a new array.
+       */
+      public byte[] getPixels() {
+         byte[] pixels = new byte[width * height * 3];
+         copyPixels(pixels);
+         return pixels;
+      }
+
+      /**
+       * Copy the bubble's pixels (RGB) into |out|.
+       * Every row is a white fill, a copy of the span, and another white fill.
+       */
+      public void copyPixels(byte[] out) {
+         assert(out.length >= width * height * 3);
+
+         for (int row = 0; row < height; row++) {
+            int base = row * width * 3;
+            int spanStart = Math.max(startCol, spans[row][0]) - startCol;
+            int spanEnd = Math.min(startCol + width - 1, spans[row][1]) - startCol;
+
+            if (spanEnd < spanStart) {
+               Arrays.fill(out, base, base + width * 3, (byte)0xFF);
+               continue;
+            }
+
+            Arrays.fill(out, base, base + spanStart * 3, (byte)0xFF);
+            System.arraycopy(pagePixels,
+                             ((startRow + row) * pageWidth + startCol + spanStart) * 3,
+                             out, base + spanStart * 3,
+                             (spanEnd - spanStart + 1) * 3);
+            Arrays.fill(out, base + (spanEnd + 1) * 3, base + width * 3, (byte)0xFF);
+         }
+      }
+
+      /**
+       * Write |rgb| (|rgbWidth| x |rgbHeight| RGB pixels) over the bubble in |page|.
+       * |page| is RGB with |pageWidth| per row, it does not have to be the page
+       *  the bubble was found in (but it has to be the same size).
+       * If |maskToSpans|, only the bubble's spans are written (so the art around a round
+       *  bubble is left alone). Otherwise, the whole bounding box is.
+       * Anything in |rgb| past the bubble is ignored.
+       */
+      public void paste(byte[] page, int pageWidth,
+                        byte[] rgb, int rgbWidth, int rgbHeight,
+                        boolean maskToSpans) {
+         assert(rgb.length >= rgbWidth * rgbHeight * 3);
+
+         int numRows = Math.min(height, rgbHeight);
+         int numCols = Math.min(width, rgbWidth);
+
+         for (int row = 0; row < numRows; row++) {
+            int spanStart = 0;
+            int spanEnd = numCols - 1;
+
+            if (maskToSpans) {
+               spanStart = Math.max(startCol, spans[row][0]) - startCol;
+               spanEnd = Math.min(startCol + numCols - 1, spans[row][1]) - startCol;
+            }
+
+            if (spanEnd < spanStart) {
+               continue;
+            }
+
+            System.arraycopy(rgb, (row * rgbWidth + spanStart) * 3,
+                             page, ((startRow + row) * pageWidth + startCol + spanStart) * 3,
+                             (spanEnd - spanStart + 1) * 3);
+         }
+      }
+
+      /**
+       * Get the bubble's grey pixels (masked the same as getPixels()).
+       * The colors are averaged straight out of the page, there is no RGB copy.
+       */
+      public GrayRaster getGrayRaster() {
+         byte[] gray = new byte[width * height];
+         Arrays.fill(gray, (byte)0xFF);
+
+         for (int row = 0; row < height; row++) {
+            int spanStart = Math.max(startCol, spans[row][0]) - startCol;
+            int spanEnd = Math.min(startCol + width - 1, spans[row][1]) - startCol;
+
+            int pageBase = ((startRow + row) * pageWidth + startCol) * 3;
+            for (int col = spanStart; col <= spanEnd; col++) {
+               int index = pageBase + col * 3;
+               gray[row * width + col] = (byte)(((0xFF & pagePixels[index + 0]) +
+                                                 (0xFF & pagePixels[index + 1]) +
+                                                 (0xFF & pagePixels[index + 2])) / 3);
+            }
+         }
+
+         return new GrayRaster(gray, width);
+      }
+
+      /**
+       * Get the bubble as its own image.
+       * The image is only made the first time that it is asked for.
+       */
+      public MagickImage getImage() throws Exception {
+         if (image == null) {
+            image = new MagickImage();
+            image.constituteImage(width, height, "RGB", getPixels());
+         }
+
+         return image;
       }
    }
 }
@@ -0,0 +1,119 @@
+package com.eriqaugustine.ocr.image;
+
+import com.eriqaugustine.ocr.utils.ImageUtils;
+
+import magick.MagickImage;
+
+/**
+ * A single character (or space) in a grey image of text.
+ * Segmentation (see TextLayout.visitCharacters()) hands these out one at a time
+ *  in reading order, and the same cell (and its buffers) is reused for every character.
+ * So, a cell is only good until the visitor returns, copy out anything that needs to stick around.
+ */
+public class CharacterCell {
+   /**
+    * Gets every character, in reading order.
+    */
+   public static interface Visitor {
+      public void visit(CharacterCell cell) throws Exception;
+   }
+
+   private final GrayRaster raster;
+
+   // [top, left, bottom, right] (inclusive, image coordinates).
+   private final int[] bounds;
+
+   private boolean space;
+
+   // Reused for every character, grown as needed.
+   private byte[] rgbBuffer;
+
+   /**
+    * |raster| is the image that all the characters come from.
+    */
+   public CharacterCell(GrayRaster raster) {
+      this.raster = raster;
+
+      bounds = new int[4];
+      space = true;
+      rgbBuffer = new byte[0];
+   }
+
+   /**
+    * Point this cell at a new character.
+    */
+   public void set(int top, int left, int bottom, int right) {
+      bounds[0] = top;
+      bounds[1] = left;
+      bounds[2] = bottom;
+      bounds[3] = right;
+      space = false;
+   }
+
+   public void set(int[] newBounds) {
+      set(newBounds[0], newBounds[1], newBounds[2], newBounds[3]);
+   }
+
+   /**
+    * Make this cell a space.
+    */
+   public void setSpace() {
+      space = true;
+   }
+
+   public boolean isSpace() {
+      return space;
+   }
+
+   /**
+    * [top, left, bottom, right] (inclusive, image coordinates).
+    * Not meaningful for spaces.
+    */
+   public int[] getBounds() {
+      return bounds.clone();
+   }
+
+   public int getWidth() {
+      return space ? 0 : bounds[3] - bounds[1] + 1;
+   }
+
+   public int getHeight() {
+      return space ? 0 : bounds[2] - bounds[0] + 1;
+   }
+
+   /**
+    * Copy the character's grey pixels into the front of |out|.
+    */
+   public void copyPixels(byte[] out) {
+      assert(!space);
+
+      raster.view(bounds).copyTo(out);
+   }
+
+   /**
+    * A view of the character's pixels (nothing is copied).
+    */
+   public GrayRaster getRaster() {
+      assert(!space);
+
+      return raster.view(bounds);
+   }
+
+   /**
+    * Make an image of the character.
+    * The RGB pixels are built in a buffer that is shared by every character in this cell.
+    * Spaces get ImageUtils.emptyImage().
+    */
+   public MagickImage getImage() throws Exception {
+      if (space) {
+         return ImageUtils.emptyImage();
+      }
+
+      int size = getWidth() * getHeight() * 3;
+      if (rgbBuffer.length < size) {
+         rgbBuffer = new byte[size];
+      }
+
+      return raster.view(bounds).toImage(rgbBuffer);
+   }
+}
@@ -7,7 +7,6 @@ import com.eriqaugustine.ocr.utils.MathUtils;
 
 import magick.MagickImage;
 
-import java.awt.Dimension;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -366,31 +365,7 @@ public class CharacterImage {
    public static double[][] getDensityMap(MagickImage image,
                                           int rows, int cols,
                                           int whiteThreshold) throws Exception {
-      assert(rows > 0 && cols > 0);
-
-      double[][] densityMap = new double[rows][cols];
-
-      Dimension dimensions = image.getDimension();
-      byte[] pixels = Filters.averageChannels(Filters.bwPixels(image), 3);
-
-      int rowDelta = dimensions.height / rows;
-      int colDelta = dimensions.width / cols;
-
-      if (rowDelta == 0 || colDelta == 0) {
-         return null;
-      }
-
-      for (int row = 0; row < rows; row++) {
-         for (int col = 0; col < cols; col++) {
-            densityMap[row][col] =
-               ImageUtils.density(pixels, dimensions.width,
-                                  row * rowDelta, rowDelta,
-                                  col * colDelta, colDelta,
-                                  whiteThreshold);
-         }
-      }
-
-      return densityMap;
+      return IntegralImage.fromImage(image, whiteThreshold).densityMap(rows, cols);
    }
 
    public static double[][] getDensityMap(MagickImage image,
@@ -431,6 +406,23 @@ public class CharacterImage {
       return rtn;
    }
 
+   /**
+    * Same as generateFontImages(), but drawn with Java2D (see CharacterUtils).
+    * Every font's characters are together, in the same order as generateFontImages().
+    */
+   public static GrayRaster[] generateFontRasters(String characters, String[] fonts) {
+      GrayRaster[] rtn = new GrayRaster[characters.length() * fonts.length];
+
+      for (int i = 0; i < fonts.length; i++) {
+         for (int j = 0; j < characters.length(); j++) {
+            rtn[i * characters.length() + j] =
+                  CharacterUtils.generateCharacterRaster(characters.charAt(j), true, fonts[i]);
+         }
+      }
+
+      return rtn;
+   }
+
    /**
     * Get the density maps for the output of generateFontImages().
     */
@@ -0,0 +1,172 @@
+package com.eriqaugustine.ocr.image;
+
+import org.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Wall time and allocation for each stage of bubble detection.
+ * Pass one into BubbleDetection.getBubbles() and it gets filled in.
+ * Only the thread that is doing the detection is measured.
+ * Allocation is only available on JVMs that support thread allocation counting
+ *  (it will be -1 otherwise).
+ */
+public class DetectionProfile {
+   /**
+    * The stages of detection, in order.
+    */
+   public static enum Stage {
+      // Grey conversion, blur, threshold, and edges.
+      PREPROCESS,
+      // Labeling the blobs and building the containment tree.
+      LABELING,
+      // Picking out the character and callout candidates.
+      CLASSIFICATION,
+      // Working out parents and kids.
+      PARENTAGE
+   }
+
+   private static final com.sun.management.ThreadMXBean allocationBean;
+
+   static {
+      ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+      if (bean instanceof com.sun.management.ThreadMXBean &&
+          ((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported()) {
+         ((com.sun.management.ThreadMXBean)bean).setThreadAllocatedMemoryEnabled(true);
+         allocationBean = (com.sun.management.ThreadMXBean)bean;
+      } else {
+         allocationBean = null;
+      }
+   }
+
+   // Indexed by stage ordinal.
+   private final long[] times;
+   private final long[] allocations;
+
+   // How many runs have been added together in here.
+   private int runs;
+
+   private Stage currentStage;
+   private long stageStartTime;
+   private long stageStartAllocation;
+
+   public DetectionProfile() {
+      times = new long[Stage.values().length];
+      allocations = new long[Stage.values().length];
+      runs = 0;
+
+      currentStage = null;
+   }
+
+   /**
+    * Start timing |stage|.
+    * Whatever stage was running is stopped.
+    */
+   public void start(Stage stage) {
+      stop();
+
+      currentStage = stage;
+      stageStartAllocation = allocatedBytes();
+      stageStartTime = System.nanoTime();
+   }
+
+   /**
+    * Stop the current stage (if there is one).
+    */
+   public void stop() {
+      if (currentStage == null) {
+         return;
+      }
+
+      long endTime = System.nanoTime();
+      long endAllocation = allocatedBytes();
+
+      times[currentStage.ordinal()] += endTime - stageStartTime;
+      if (allocationBean != null) {
+         allocations[currentStage.ordinal()] += endAllocation - stageStartAllocation;
+      }
+
+      currentStage = null;
+   }
+
+   /**
+    * Add all of |other|'s measurements into this one.
+    */
+   public void add(DetectionProfile other) {
+      for (int i = 0; i < times.length; i++) {
+         times[i] += other.times[i];
+         allocations[i] += other.allocations[i];
+      }
+
+      runs += other.runs;
+   }
+
+   /**
+    * Stop the current stage and count a full run of detection.
+    */
+   public void endRun() {
+      stop();
+      runs++;
+   }
+
+   public int getRuns() {
+      return runs;
+   }
+
+   /**
+    * The total time (in nanoseconds) spent in |stage| over all the runs.
+    */
+   public long getTime(Stage stage) {
+      return times[stage.ordinal()];
+   }
+
+   /**
+    * The total bytes allocated in |stage| over all the runs.
+    * -1 if allocation can not be measured.
+    */
+   public long getAllocation(Stage stage) {
+      if (allocationBean == null) {
+         return -1;
+      }
+
+      return allocations[stage.ordinal()];
+   }
+
+   public long getTotalTime() {
+      long total = 0;
+      for (long time : times) {
+         total += time;
+      }
+      return total;
+   }
+
+   /**
+    * {stage: {"ms": average ms per run, "bytes": average bytes per run}, ..., "runs": runs}
+    */
+   public JSONObject toJSON() {
+      JSONObject rtn = new JSONObject();
+      int divisor = Math.max(1, runs);
+
+      for (Stage stage : Stage.values()) {
+         JSONObject stageInfo = new JSONObject();
+         stageInfo.put("ms", getTime(stage) / 1000000.0 / divisor);
+         stageInfo.put("bytes", allocationBean == null ? -1 : getAllocation(stage) / divisor);
+         rtn.put(stage.name().toLowerCase(), stageInfo);
+      }
+
+      rtn.put("total_ms", getTotalTime() / 1000000.0 / divisor);
+      rtn.put("runs", runs);
+
+      return rtn;
+   }
+
+   private static long allocatedBytes() {
+      if (allocationBean == null) {
+         return 0;
+      }
+
+      return allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+   }
+}
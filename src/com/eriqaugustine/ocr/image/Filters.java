@@ -1,8 +1,11 @@
 package com.eriqaugustine.ocr.image;
 
+import com.eriqaugustine.ocr.utils.BufferPool;
+
 import magick.MagickImage;
 
 import java.awt.Dimension;
+import java.util.Arrays;
 
 /**
  * Filters to run on images.
@@ -10,6 +13,9 @@ import java.awt.Dimension;
 public class Filters {
    public static final int DEFAULT_BW_THRESHOLD = 150;
 
+   // The fixed point scale for the blur kernels.
+   private static final int BLUR_KERNEL_SCALE = 1 << 10;
+
    public static byte[] bwPixels(MagickImage image, int threshold) throws Exception {
       Dimension dimensions = image.getDimension();
       byte[] pixels = new byte[dimensions.width * dimensions.height * 3];
@@ -52,11 +58,15 @@ public class Filters {
     ( In the resulting image, true means that there is black there.
     */
    public static boolean[] discretizePixels(MagickImage image, int threshold) throws Exception {
-      byte[] bw = averageChannels(bwPixels(image, threshold), 3);
-      boolean[] rtn = new boolean[bw.length];
+      Dimension dimensions = image.getDimension();
+      boolean[] rtn = new boolean[dimensions.width * dimensions.height];
 
-      for (int i = 0; i < bw.length; i++) {
-         rtn[i] = bw[i] == 0;
+      BufferPool pool = BufferPool.shared();
+      byte[] rgb = pool.leaseBytes(rtn.length * 3);
+      try {
+         rgbToDiscrete(rgbPixels(image, rgb), rtn.length, threshold, rtn);
+      } finally {
+         pool.release(rgb);
       }
 
       return rtn;
@@ -66,6 +76,45 @@ public class Filters {
       return discretizePixels(image, DEFAULT_BW_THRESHOLD);
    }
 
+   /**
+    * Same as above, but |thresholder| decides what is black.
+    */
+   public static boolean[] discretizePixels(MagickImage image, Thresholder thresholder)
+         throws Exception {
+      int threshold = thresholder.getGlobalThreshold();
+      if (threshold >= 0) {
+         return discretizePixels(image, threshold);
+      }
+
+      return thresholder.threshold(GrayRaster.fromImage(image)).toBooleans();
+   }
+
+   /**
+    * Same as bwPixels(), but |thresholder| decides what is black.
+    */
+   public static byte[] bwPixels(MagickImage image, Thresholder thresholder) throws Exception {
+      int threshold = thresholder.getGlobalThreshold();
+      if (threshold >= 0) {
+         return bwPixels(image, threshold);
+      }
+
+      BinaryRaster black = thresholder.threshold(GrayRaster.fromImage(image));
+      byte[] pixels = new byte[black.width * black.height * 3];
+
+      for (int row = 0; row < black.height; row++) {
+         for (int col = 0; col < black.width; col++) {
+            int index = (row * black.width + col) * 3;
+
+            byte fill = black.get(row, col) ? 0 : (byte)0xFF;
+            pixels[index + 0] = fill;
+            pixels[index + 1] = fill;
+            pixels[index + 2] = fill;
+         }
+      }
+
+      return pixels;
+   }
+
    /**
     * Take an image and make it only black and white.
     * This filter doesn't mess around, no greys.
@@ -87,6 +136,517 @@ public class Filters {
       return bw(image, DEFAULT_BW_THRESHOLD);
    }
 
+   public static MagickImage bw(MagickImage image, Thresholder thresholder) throws Exception {
+      Dimension dimensions = image.getDimension();
+      byte[] pixels = bwPixels(image, thresholder);
+
+      MagickImage newImage = new MagickImage();
+      newImage.constituteImage(dimensions.width, dimensions.height,
+                               "RGB",
+                               pixels);
+
+      return newImage;
+   }
+
+   /**
+    * Get the single channel (grey) pixels for an image.
+    * This is the only trip through JMagick, everything after this can stay in Java.
+    */
+   public static byte[] grayPixels(MagickImage image) throws Exception {
+      Dimension dimensions = image.getDimension();
+      byte[] gray = new byte[dimensions.width * dimensions.height];
+
+      // The RGB pixels are only needed until they are averaged.
+      BufferPool pool = BufferPool.shared();
+      byte[] rgb = pool.leaseBytes(gray.length * 3);
+      try {
+         rgbToGray(rgbPixels(image, rgb), gray.length, gray);
+      } finally {
+         pool.release(rgb);
+      }
+
+      return gray;
+   }
+
+   /**
+    * Get the RGB pixels for an image.
+    */
+   public static byte[] rgbPixels(MagickImage image) throws Exception {
+      Dimension dimensions = image.getDimension();
+      return rgbPixels(image, new byte[dimensions.width * dimensions.height * 3]);
+   }
+
+   /**
+    * Same as above, but the pixels are put in |pixels| (eg. from a BufferPool).
+    * Returns |pixels|.
+    */
+   public static byte[] rgbPixels(MagickImage image, byte[] pixels) throws Exception {
+      Dimension dimensions = image.getDimension();
+      assert(pixels.length >= dimensions.width * dimensions.height * 3);
+
+      image.dispatchImage(0, 0,
+                          dimensions.width, dimensions.height,
+                          "RGB",
+                          pixels);
+
+      return pixels;
+   }
+
+   /**
+    * Average the first |numPixels| RGB pixels of |rgb| into |out| (one byte per pixel).
+    * |out| can be bigger than needed, so it can be reused.
+    */
+   public static void rgbToGray(byte[] rgb, int numPixels, byte[] out) {
+      assert(rgb.length >= numPixels * 3 && out.length >= numPixels);
+
+      for (int i = 0, index = 0; i < numPixels; i++, index += 3) {
+         out[i] = (byte)(((0xFF & rgb[index + 0]) +
+                          (0xFF & rgb[index + 1]) +
+                          (0xFF & rgb[index + 2])) / 3);
+      }
+   }
+
+   /**
+    * Threshold the first |numPixels| RGB pixels of |rgb| straight into |out|
+    *  (true is black), without going through grey or bw pixels first.
+    * A pixel is black if its average is at most |threshold| (the same as bwPixels()).
+    */
+   public static void rgbToDiscrete(byte[] rgb, int numPixels, int threshold, boolean[] out) {
+      assert(rgb.length >= numPixels * 3 && out.length >= numPixels);
+
+      // Compare sums instead of dividing every pixel: avg <= t iff sum < 3 * (t + 1).
+      int sumThreshold = 3 * (threshold + 1);
+
+      for (int i = 0, index = 0; i < numPixels; i++, index += 3) {
+         out[i] = (0xFF & rgb[index + 0]) +
+                  (0xFF & rgb[index + 1]) +
+                  (0xFF & rgb[index + 2]) < sumThreshold;
+      }
+   }
+
+   /**
+    * Threshold RGB pixels straight into packed bits (the layout of BinaryRaster:
+    *  each row is (|width| + 63) / 64 longs, bit i of word w is column w * 64 + i).
+    * A pixel is black (set) if its average is at most |threshold|.
+    * |out| must be zeroed (or at least have the bits past the last column cleared)
+    *  and can be bigger than needed.
+    */
+   public static void rgbToBinary(byte[] rgb, int width, int height,
+                                  int threshold, long[] out) {
+      int wordsPerRow = (width + 63) >>> 6;
+      assert(rgb.length >= width * height * 3 && out.length >= wordsPerRow * height);
+
+      int sumThreshold = 3 * (threshold + 1);
+
+      int index = 0;
+      for (int row = 0; row < height; row++) {
+         int wordBase = row * wordsPerRow;
+
+         for (int wordCol = 0; wordCol < width; wordCol += 64) {
+            int end = Math.min(64, width - wordCol);
+            long word = 0;
+
+            for (int bit = 0; bit < end; bit++, index += 3) {
+               if ((0xFF & rgb[index + 0]) +
+                   (0xFF & rgb[index + 1]) +
+                   (0xFF & rgb[index + 2]) < sumThreshold) {
+                  word |= 1L << bit;
+               }
+            }
+
+            out[wordBase + (wordCol >>> 6)] = word;
+         }
+      }
+   }
+
+   /**
+    * The full preprocessing that bubble detection needs, done in one pass over a grey image.
+    * This is the same as (in JMagick terms):
+    *  blurImage(|blurRadius|, |blurSigma|), bw(|threshold|), and then edgeImage(|edgeRadius|).
+    * |rawPixels| gets the thresholded blur (0 is black, 0xFF is white).
+    * |edgedPixels| gets the edges: a white pixel that has a black pixel within |edgeRadius|
+    *  (in any direction) is an edge (0xFF), everything else is 0.
+    * Both outputs must be the same size as |gray|.
+    *
+    * The rows are streamed: only the last few blurred rows and dilated rows are kept around,
+    *  so the only full size buffers are |gray| and the two outputs.
+    */
+   public static void bubbleMasks(byte[] gray, int width,
+                                  int blurRadius, double blurSigma,
+                                  int threshold,
+                                  int edgeRadius,
+                                  byte[] rawPixels, byte[] edgedPixels) {
+      assert(gray.length % width == 0);
+      assert(rawPixels.length == gray.length && edgedPixels.length == gray.length);
+
+      bubbleMasks(gray, width, gray.length / width,
+                  blurRadius, blurSigma,
+                  threshold,
+                  edgeRadius,
+                  rawPixels, edgedPixels);
+   }
+
+   /**
+    * Same as above, but only the first |height| rows of the buffers are used.
+    * This lets the same buffers be reused for bands of different heights.
+    */
+   public static void bubbleMasks(byte[] gray, int width, int height,
+                                  int blurRadius, double blurSigma,
+                                  int threshold,
+                                  int edgeRadius,
+                                  byte[] rawPixels, byte[] edgedPixels) {
+      bubbleMasks(gray, width, height,
+                  blurRadius, blurSigma,
+                  threshold, null,
+                  edgeRadius,
+                  rawPixels, edgedPixels);
+   }
+
+   /**
+    * Same as above, but if |thresholds| is not null then each pixel has its own threshold
+    *  (see Thresholder.thresholds()) and |threshold| is ignored.
+    */
+   public static void bubbleMasks(byte[] gray, int width, int height,
+                                  int blurRadius, double blurSigma,
+                                  int threshold, byte[] thresholds,
+                                  int edgeRadius,
+                                  byte[] rawPixels, byte[] edgedPixels) {
+      assert(gray.length >= width * height);
+      assert(rawPixels.length >= width * height && edgedPixels.length >= width * height);
+      assert(thresholds == null || thresholds.length >= width * height);
+
+      int[] kernel = gaussianKernel(blurRadius, blurSigma);
+      long kernelScale = (long)BLUR_KERNEL_SCALE * BLUR_KERNEL_SCALE;
+
+      // Horizontally blurred rows (row % size).
+      int[][] blurRows = new int[2 * blurRadius + 1][width];
+
+      // Horizontally dilated black (how many black pixels are within |edgeRadius| in the row).
+      int[][] blackRows = new int[2 * edgeRadius + 1][width];
+      // For each column, how many of the dilated rows in the window have some black.
+      int[] blackCounts = new int[width];
+
+      int nextBlurRow = 0;
+
+      // |row| is the raw row that is being made.
+      // The edge row lags behind by |edgeRadius|.
+      for (int row = 0; row < height + edgeRadius; row++) {
+         if (row < height) {
+            // Make sure that all the blurred rows that we need are around.
+            while (nextBlurRow < height && nextBlurRow <= row + blurRadius) {
+               horizontalBlur(gray, width, nextBlurRow, kernel,
+                              blurRows[nextBlurRow % blurRows.length]);
+               nextBlurRow++;
+            }
+
+            int base = row * width;
+            for (int col = 0; col < width; col++) {
+               long sum = 0;
+               for (int offset = -blurRadius; offset <= blurRadius; offset++) {
+                  int blurRow = Math.min(height - 1, Math.max(0, row + offset));
+                  sum += (long)kernel[offset + blurRadius] *
+                         blurRows[blurRow % blurRows.length][col];
+               }
+
+               int value = (int)((sum + kernelScale / 2) / kernelScale);
+               int pixelThreshold = thresholds == null ? threshold :
+                                                         (0xFF & thresholds[base + col]);
+               rawPixels[base + col] = value > pixelThreshold ? (byte)0xFF : 0;
+            }
+
+            // Dilate the new raw row horizontally and slide it into the window.
+            int[] blackRow = blackRows[row % blackRows.length];
+            if (row >= blackRows.length) {
+               removeBlackRow(blackRow, blackCounts);
+            }
+            horizontalDilate(rawPixels, width, row, edgeRadius, blackRow);
+            for (int col = 0; col < width; col++) {
+               if (blackRow[col] > 0) {
+                  blackCounts[col]++;
+               }
+            }
+         } else if (row - blackRows.length >= 0) {
+            // Past the bottom, the window just shrinks.
+            removeBlackRow(blackRows[row % blackRows.length], blackCounts);
+         }
+
+         int edgeRow = row - edgeRadius;
+         if (edgeRow < 0) {
+            continue;
+         }
+
+         int base = edgeRow * width;
+         for (int col = 0; col < width; col++) {
+            if (rawPixels[base + col] != 0 && blackCounts[col] > 0) {
+               edgedPixels[base + col] = (byte)0xFF;
+            } else {
+               edgedPixels[base + col] = 0;
+            }
+         }
+      }
+   }
+
+   private static void removeBlackRow(int[] blackRow, int[] blackCounts) {
+      for (int col = 0; col < blackRow.length; col++) {
+         if (blackRow[col] > 0) {
+            blackCounts[col]--;
+         }
+         blackRow[col] = 0;
+      }
+   }
+
+   /**
+    * Blur a single row of |gray| with |kernel|.
+    * The results are still scaled by BLUR_KERNEL_SCALE.
+    */
+   private static void horizontalBlur(byte[] gray, int width, int row,
+                                      int[] kernel, int[] out) {
+      int radius = kernel.length / 2;
+      int base = row * width;
+
+      for (int col = 0; col < width; col++) {
+         int sum = 0;
+         for (int offset = -radius; offset <= radius; offset++) {
+            int sampleCol = Math.min(width - 1, Math.max(0, col + offset));
+            sum += kernel[offset + radius] * (0xFF & gray[base + sampleCol]);
+         }
+         out[col] = sum;
+      }
+   }
+
+   /**
+    * For each pixel in |row|, count the black pixels within |radius| in the same row.
+    */
+   private static void horizontalDilate(byte[] pixels, int width, int row,
+                                        int radius, int[] out) {
+      int base = row * width;
+      int count = 0;
+
+      // Prime the window with everything right of the first pixel.
+      for (int col = 0; col < Math.min(width, radius); col++) {
+         if (pixels[base + col] == 0) {
+            count++;
+         }
+      }
+
+      for (int col = 0; col < width; col++) {
+         int enter = col + radius;
+         if (enter < width && pixels[base + enter] == 0) {
+            count++;
+         }
+
+         int leave = col - radius - 1;
+         if (leave >= 0 && pixels[base + leave] == 0) {
+            count--;
+         }
+
+         out[col] = count;
+      }
+   }
+
+   /**
+    * A 1D gaussian kernel of length (2 * |radius| + 1) that sums to BLUR_KERNEL_SCALE.
+    */
+   private static int[] gaussianKernel(int radius, double sigma) {
+      double[] weights = new double[2 * radius + 1];
+      double total = 0;
+
+      for (int i = -radius; i <= radius; i++) {
+         weights[i + radius] = Math.exp(-(i * i) / (2.0 * sigma * sigma));
+         total += weights[i + radius];
+      }
+
+      int[] kernel = new int[weights.length];
+      int intTotal = 0;
+      for (int i = 0; i < weights.length; i++) {
+         kernel[i] = (int)Math.round(weights[i] / total * BLUR_KERNEL_SCALE);
+         intTotal += kernel[i];
+      }
+
+      // Put any rounding error in the center.
+      kernel[radius] += BLUR_KERNEL_SCALE - intTotal;
+
+      return kernel;
+   }
+
+   /**
+    * Shrink a single channel image by |factor| on each side.
+    * Each new pixel is the average of the |factor| x |factor| block it covers.
+    * Any leftover rows/cols on the bottom/right are dropped.
+    */
+   public static byte[] downsample(byte[] pixels, int width, int factor) {
+      int height = pixels.length / width;
+      int newWidth = width / factor;
+      int newHeight = height / factor;
+      int blockSize = factor * factor;
+
+      byte[] rtn = new byte[newWidth * newHeight];
+      int[] sums = new int[newWidth];
+
+      for (int newRow = 0; newRow < newHeight; newRow++) {
+         for (int i = 0; i < newWidth; i++) {
+            sums[i] = 0;
+         }
+
+         for (int row = newRow * factor; row < (newRow + 1) * factor; row++) {
+            int base = row * width;
+            for (int col = 0; col < newWidth * factor; col++) {
+               sums[col / factor] += 0xFF & pixels[base + col];
+            }
+         }
+
+         for (int newCol = 0; newCol < newWidth; newCol++) {
+            rtn[newRow * newWidth + newCol] = (byte)(sums[newCol] / blockSize);
+         }
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Scale a single channel image to any size (up or down) by area averaging.
+    * Each new pixel is the average of the part of the image that it covers,
+    *  with the pixels on its edges weighted by how much of them it covers
+    *  (this is what ImageMagick's scaleImage() does).
+    * All the weights are kept as integers (in units of 1 / |newWidth| or 1 / |newHeight|
+    *  of a source pixel), so there is no rounding until the very end.
+    */
+   public static GrayRaster scale(GrayRaster raster, int newWidth, int newHeight) {
+      assert(newWidth > 0 && newHeight > 0);
+      assert(raster.width > 0 && raster.height > 0);
+
+      int width = raster.width;
+      int height = raster.height;
+
+      // First, scale each row horizontally. Each new column sums to |width| weight.
+      int[] rowSums = new int[height * newWidth];
+      for (int row = 0; row < height; row++) {
+         int base = raster.index(row, 0);
+         int sumBase = row * newWidth;
+
+         for (int newCol = 0; newCol < newWidth; newCol++) {
+            int position = newCol * width;
+            int end = position + width;
+            int col = position / newWidth;
+            int sum = 0;
+
+            while (position < end) {
+               int next = Math.min((col + 1) * newWidth, end);
+               sum += (next - position) * (0xFF & raster.pixels[base + col]);
+               position = next;
+               col++;
+            }
+
+            rowSums[sumBase + newCol] = sum;
+         }
+      }
+
+      // Then down the columns. Each new row sums to |height| weight.
+      byte[] rtn = new byte[newWidth * newHeight];
+      long totalWeight = (long)width * height;
+
+      for (int newRow = 0; newRow < newHeight; newRow++) {
+         for (int newCol = 0; newCol < newWidth; newCol++) {
+            int position = newRow * height;
+            int end = position + height;
+            int row = position / newHeight;
+            long sum = 0;
+
+            while (position < end) {
+               int next = Math.min((row + 1) * newHeight, end);
+               sum += (long)(next - position) * rowSums[row * newWidth + newCol];
+               position = next;
+               row++;
+            }
+
+            rtn[newRow * newWidth + newCol] = (byte)((sum + totalWeight / 2) / totalWeight);
+         }
+      }
+
+      return new GrayRaster(rtn, newWidth);
+   }
+
+   /**
+    * Scale |raster| (usually a view of a character's tight bounds) straight into
+    *  |newWidth| x |newHeight| booleans (true is black, row major in |out|).
+    * This gives exactly scale() followed by threshold(|threshold|), but the only thing
+    *  in between is a single row of sums. No scaled image is ever made.
+    * Each source row is scaled horizontally once (the rows are visited in order,
+    *  and only the last one is ever needed again).
+    */
+   public static void scaleToDiscrete(GrayRaster raster, int newWidth, int newHeight,
+                                      int threshold, boolean[] out) {
+      assert(newWidth > 0 && newHeight > 0);
+      assert(raster.width > 0 && raster.height > 0);
+      assert(out.length >= newWidth * newHeight);
+
+      int width = raster.width;
+      int height = raster.height;
+
+      // The horizontal sums of |sumsRow| (each new column sums to |width| weight).
+      int[] rowSums = new int[newWidth];
+      int sumsRow = -1;
+
+      long[] colSums = new long[newWidth];
+      long totalWeight = (long)width * height;
+
+      // Rounded average <= threshold iff sum + total / 2 < (threshold + 1) * total.
+      long blackLimit = (threshold + 1) * totalWeight - totalWeight / 2;
+
+      for (int newRow = 0; newRow < newHeight; newRow++) {
+         Arrays.fill(colSums, 0);
+
+         int position = newRow * height;
+         int end = position + height;
+         int row = position / newHeight;
+
+         while (position < end) {
+            int next = Math.min((row + 1) * newHeight, end);
+
+            if (row != sumsRow) {
+               scaleRow(raster, row, newWidth, rowSums);
+               sumsRow = row;
+            }
+
+            for (int newCol = 0; newCol < newWidth; newCol++) {
+               colSums[newCol] += (long)(next - position) * rowSums[newCol];
+            }
+
+            position = next;
+            row++;
+         }
+
+         int base = newRow * newWidth;
+         for (int newCol = 0; newCol < newWidth; newCol++) {
+            out[base + newCol] = colSums[newCol] < blackLimit;
+         }
+      }
+   }
+
+   /**
+    * Scale a single row horizontally (the same weights as scale()).
+    */
+   private static void scaleRow(GrayRaster raster, int row, int newWidth, int[] out) {
+      int width = raster.width;
+      int base = raster.index(row, 0);
+
+      for (int newCol = 0; newCol < newWidth; newCol++) {
+         int position = newCol * width;
+         int end = position + width;
+         int col = position / newWidth;
+         int sum = 0;
+
+         while (position < end) {
+            int next = Math.min((col + 1) * newWidth, end);
+            sum += (next - position) * (0xFF & raster.pixels[base + col]);
+            position = next;
+            col++;
+         }
+
+         out[newCol] = sum;
+      }
+   }
+
    public static byte[] averageChannels(byte[] multiChannels, int numChannels) {
       assert(multiChannels.length % numChannels == 0);
 
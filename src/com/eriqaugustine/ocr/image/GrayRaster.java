@@ -0,0 +1,164 @@
+package com.eriqaugustine.ocr.image;
+
+import magick.MagickImage;
+
+/**
+ * A single channel (grey) image that lives in Java.
+ * Pixels are read out of a MagickImage once (fromImage()) and everything after that
+ *  works on the raster, only going back to a MagickImage (toImage()) at the very end.
+ *
+ * A raster can be a view into a bigger one (see view()), so the pixel at (|row|, |col|)
+ *  is at |offset| + |row| * |stride| + |col| in |pixels|.
+ * Views share pixels with whatever they came from.
+ */
+public class GrayRaster {
+   public final byte[] pixels;
+   public final int offset;
+   public final int stride;
+   public final int width;
+   public final int height;
+
+   /**
+    * Pull the grey pixels out of an image.
+    * This is the only trip through JMagick.
+    */
+   public static GrayRaster fromImage(MagickImage image) throws Exception {
+      return new GrayRaster(Filters.grayPixels(image), image.getDimension().width);
+   }
+
+   /**
+    * Average three channel (RGB) pixels into a new raster.
+    */
+   public static GrayRaster fromRGB(byte[] rgbPixels, int width) {
+      byte[] gray = new byte[rgbPixels.length / 3];
+      Filters.rgbToGray(rgbPixels, gray.length, gray);
+      return new GrayRaster(gray, width);
+   }
+
+   /**
+    * A raster that covers all of |pixels|.
+    */
+   public GrayRaster(byte[] pixels, int width) {
+      this(pixels, 0, width, width, width == 0 ? 0 : pixels.length / width);
+   }
+
+   public GrayRaster(byte[] pixels, int offset, int stride, int width, int height) {
+      assert(width <= stride || height <= 1);
+      assert(height == 0 || offset + (height - 1) * stride + width <= pixels.length);
+
+      this.pixels = pixels;
+      this.offset = offset;
+      this.stride = stride;
+      this.width = width;
+      this.height = height;
+   }
+
+   /**
+    * The index of (|row|, |col|) in |pixels|.
+    */
+   public int index(int row, int col) {
+      return offset + row * stride + col;
+   }
+
+   /**
+    * The (unsigned) value at (|row|, |col|).
+    */
+   public int get(int row, int col) {
+      return 0xFF & pixels[offset + row * stride + col];
+   }
+
+   public int length() {
+      return width * height;
+   }
+
+   /**
+    * Get a view of a region of this raster.
+    * Nothing is copied.
+    */
+   public GrayRaster view(int startRow, int startCol, int viewWidth, int viewHeight) {
+      assert(startRow >= 0 && startRow + viewHeight <= height);
+      assert(startCol >= 0 && startCol + viewWidth <= width);
+
+      return new GrayRaster(pixels, index(startRow, startCol), stride, viewWidth, viewHeight);
+   }
+
+   /**
+    * Get a view of [top, left, bottom, right] (inclusive).
+    */
+   public GrayRaster view(int[] bounds) {
+      return view(bounds[0], bounds[1], bounds[3] - bounds[1] + 1, bounds[2] - bounds[0] + 1);
+   }
+
+   /**
+    * True if the pixels are exactly |pixels| (no offset or padding).
+    */
+   public boolean isCompact() {
+      return offset == 0 && (stride == width || height <= 1) && pixels.length == length();
+   }
+
+   /**
+    * Get the pixels packed together (row major, |width| per row).
+    * If this raster is already compact, then its own pixels are returned (not a copy).
+    */
+   public byte[] compact() {
+      if (isCompact()) {
+         return pixels;
+      }
+
+      byte[] rtn = new byte[length()];
+      copyTo(rtn);
+      return rtn;
+   }
+
+   /**
+    * Copy the pixels packed together into the front of |out|.
+    */
+   public void copyTo(byte[] out) {
+      assert(out.length >= length());
+
+      for (int row = 0; row < height; row++) {
+         System.arraycopy(pixels, index(row, 0), out, row * width, width);
+      }
+   }
+
+   /**
+    * Threshold into a binary raster.
+    * A pixel is black if it is at most |threshold| (the same as Filters.bwPixels()).
+    */
+   public BinaryRaster threshold(int threshold) {
+      return BinaryRaster.fromGray(this, threshold);
+   }
+
+   /**
+    * Make an image (RGB, the grey is just copied into each channel).
+    */
+   public MagickImage toImage() throws Exception {
+      return toImage(new byte[length() * 3]);
+   }
+
+   /**
+    * Same as toImage(), but the RGB pixels are built in |rgbPixels|
+    *  (which can be bigger than needed, so it can be reused).
+    */
+   public MagickImage toImage(byte[] rgbPixels) throws Exception {
+      assert(rgbPixels.length >= length() * 3);
+
+      for (int row = 0; row < height; row++) {
+         int base = index(row, 0);
+         int rgbBase = row * width * 3;
+
+         for (int col = 0; col < width; col++) {
+            byte value = pixels[base + col];
+
+            rgbPixels[rgbBase + col * 3 + 0] = value;
+            rgbPixels[rgbBase + col * 3 + 1] = value;
+            rgbPixels[rgbBase + col * 3 + 2] = value;
+         }
+      }
+
+      MagickImage image = new MagickImage();
+      image.constituteImage(width, height, "RGB", rgbPixels);
+
+      return image;
+   }
+}
@@ -0,0 +1,145 @@
+package com.eriqaugustine.ocr.image;
+
+import magick.MagickImage;
+
+import java.awt.Dimension;
+import java.nio.ByteBuffer;
+
+/**
+ * Somewhere to read single channel (grey) pixels from, a piece at a time.
+ * This lets detection work on a band or a region of a page without
+ *  ever holding the whole page in Java.
+ */
+public abstract class GraySource {
+   protected final int width;
+   protected final int height;
+
+   protected GraySource(int width, int height) {
+      this.width = width;
+      this.height = height;
+   }
+
+   public int getWidth() {
+      return width;
+   }
+
+   public int getHeight() {
+      return height;
+   }
+
+   /**
+    * Read the grey pixels in the region into the front of |out|.
+    * |out| must hold at least |regionWidth| * |regionHeight| pixels.
+    */
+   public abstract void readRegion(int startRow, int startCol,
+                                   int regionWidth, int regionHeight,
+                                   byte[] out) throws Exception;
+
+   /**
+    * Read full rows into the front of |out|.
+    */
+   public void readRows(int startRow, int numRows, byte[] out) throws Exception {
+      readRegion(startRow, 0, width, numRows, out);
+   }
+
+   /**
+    * A source that is backed by an image.
+    * Pixels are only pulled out of the image when they are asked for.
+    */
+   public static GraySource fromImage(MagickImage image) throws Exception {
+      return new ImageSource(image);
+   }
+
+   /**
+    * A source that is backed by grey pixels that are already in memory.
+    */
+   public static GraySource fromPixels(byte[] pixels, int width) {
+      return fromRaster(new GrayRaster(pixels, width));
+   }
+
+   /**
+    * A source that is backed by a raster (or a view of one).
+    */
+   public static GraySource fromRaster(GrayRaster raster) {
+      return new RasterSource(raster);
+   }
+
+   /**
+    * A source that is backed by grey pixels in a buffer (eg. a mapped file, see RasterCache).
+    * The pixels are row major starting at the buffer's position 0.
+    */
+   public static GraySource fromBuffer(ByteBuffer pixels, int width, int height) {
+      return new BufferSource(pixels, width, height);
+   }
+
+   private static class ImageSource extends GraySource {
+      private final MagickImage image;
+
+      // Reused between reads.
+      private byte[] rgbPixels;
+
+      public ImageSource(MagickImage image) throws Exception {
+         this(image, image.getDimension());
+      }
+
+      private ImageSource(MagickImage image, Dimension dimensions) {
+         super(dimensions.width, dimensions.height);
+         this.image = image;
+         rgbPixels = new byte[0];
+      }
+
+      public void readRegion(int startRow, int startCol,
+                             int regionWidth, int regionHeight,
+                             byte[] out) throws Exception {
+         int numPixels = regionWidth * regionHeight;
+         if (rgbPixels.length < numPixels * 3) {
+            rgbPixels = new byte[numPixels * 3];
+         }
+
+         image.dispatchImage(startCol, startRow,
+                             regionWidth, regionHeight,
+                             "RGB",
+                             rgbPixels);
+
+         Filters.rgbToGray(rgbPixels, numPixels, out);
+      }
+   }
+
+   private static class BufferSource extends GraySource {
+      private final ByteBuffer pixels;
+
+      public BufferSource(ByteBuffer pixels, int width, int height) {
+         super(width, height);
+         assert(pixels.capacity() >= width * height);
+
+         this.pixels = pixels;
+      }
+
+      public void readRegion(int startRow, int startCol,
+                             int regionWidth, int regionHeight,
+                             byte[] out) {
+         // Reads move the position, so every read gets its own.
+         ByteBuffer reader = pixels.duplicate();
+
+         for (int row = 0; row < regionHeight; row++) {
+            reader.position((startRow + row) * width + startCol);
+            reader.get(out, row * regionWidth, regionWidth);
+         }
+      }
+   }
+
+   private static class RasterSource extends GraySource {
+      private final GrayRaster raster;
+
+      public RasterSource(GrayRaster raster) {
+         super(raster.width, raster.height);
+         this.raster = raster;
+      }
+
+      public void readRegion(int startRow, int startCol,
+                             int regionWidth, int regionHeight,
+                             byte[] out) {
+         raster.view(startRow, startCol, regionWidth, regionHeight).copyTo(out);
+      }
+   }
+}
@@ -2,6 +2,7 @@ package com.eriqaugustine.ocr.image;
 
 import com.eriqaugustine.ocr.pdc.PDCClassifier;
 import com.eriqaugustine.ocr.translate.Translator;
+import com.eriqaugustine.ocr.utils.BufferPool;
 import com.eriqaugustine.ocr.utils.ImageUtils;
 
 import magick.MagickImage;
@@ -9,10 +10,28 @@ import magick.MagickImage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.awt.Dimension;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Translate and replace the text in an image.
+ * The steps are also available on their own (see PagePipeline).
+ * Everything here is safe to use from multiple threads at once.
+ *
+ * Within a page, the bubbles are done in parallel:
+ *  each bubble is recognized on a pool of OCR workers and, as soon as its text is ready,
+ *  its translation is sent off on a pool of translation workers.
+ * So translations are waiting on the network while later bubbles are still being recognized,
+ *  and a page takes about as long as its slowest bubble.
+ * The workers are daemon threads, call shutdown() to stop them early.
  */
 public class ImageTranslator {
    private static Logger logger = LogManager.getLogger(ImageTranslator.class.getName());
@@ -22,10 +41,22 @@ public class ImageTranslator {
    private static final String ALPHABET = com.eriqaugustine.ocr.Test.HIRAGANA +
                                           com.eriqaugustine.ocr.Test.KATAKANA;
 
+   // Translation is mostly waiting on the network.
+   public static final int DEFAULT_TRANSLATE_WORKERS = 4;
+
    private PDCClassifier classy;
    private Translator trans;
 
+   private final ExecutorService ocrWorkers;
+   private final ExecutorService translateWorkers;
+
    public ImageTranslator() throws Exception {
+      this(Runtime.getRuntime().availableProcessors(), DEFAULT_TRANSLATE_WORKERS);
+   }
+
+   public ImageTranslator(int numOCRWorkers, int numTranslateWorkers) throws Exception {
+      assert(numOCRWorkers > 0 && numTranslateWorkers > 0);
+
       String trainingAlphabet = "";
       for (int i = 0; i < FONTS.length; i++) {
          trainingAlphabet += ALPHABET;
@@ -34,29 +65,211 @@ public class ImageTranslator {
       classy = new PDCClassifier(CharacterImage.generateFontImages(ALPHABET, FONTS),
                                  trainingAlphabet, true, 1);
       trans = new Translator("ja", "en");
+
+      ocrWorkers = Executors.newFixedThreadPool(numOCRWorkers, new DaemonFactory("ocr"));
+      translateWorkers = Executors.newFixedThreadPool(numTranslateWorkers,
+                                                      new DaemonFactory("translate"));
    }
 
    public MagickImage translate(MagickImage baseImage) throws Exception {
       BubbleDetection.BubbleInfo[] bubbles = BubbleDetection.extractBubblesWithInfo(baseImage);
 
-      for (BubbleDetection.BubbleInfo bubble : bubbles) {
-         String text = "";
+      // Each OCR job hands back the future for its translation.
+      List<Future<Future<String>>> jobs = new ArrayList<Future<Future<String>>>(bubbles.length);
+      for (final BubbleDetection.BubbleInfo bubble : bubbles) {
+         jobs.add(ocrWorkers.submit(new Callable<Future<String>>() {
+            public Future<String> call() throws Exception {
+               final String text = recognize(segment(bubble));
+               logger.debug(text);
+
+               return translateWorkers.submit(new Callable<String>() {
+                  public String call() {
+                     return translateText(text);
+                  }
+               });
+            }
+         }));
+      }
 
-         List<MagickImage> characterImages = TextImage.characterBreakup(bubble.image);
-         for (MagickImage image : characterImages) {
-            text += classy.classify(image);
+      String[] translations = new String[bubbles.length];
+      try {
+         for (int i = 0; i < bubbles.length; i++) {
+            translations[i] = jobs.get(i).get().get();
          }
+      } catch (ExecutionException ex) {
+         cancel(jobs);
 
-         logger.debug(text.trim());
+         if (ex.getCause() instanceof Exception) {
+            throw (Exception)ex.getCause();
+         }
+         throw ex;
+      } catch (InterruptedException ex) {
+         cancel(jobs);
+         throw ex;
+      }
 
-         String translation = trans.translate(text.trim());
+      return composite(baseImage, bubbles, translations);
+   }
 
-         MagickImage transBubble = ImageUtils.generateString(translation, false,
-                                                             bubble.width, bubble.height);
-         baseImage = ImageUtils.overlayImage(baseImage, transBubble,
-                                             bubble.startRow, bubble.startCol);
+   /**
+    * Stop the workers.
+    * Anything already running finishes, but this translator can not be used anymore.
+    */
+   public void shutdown() {
+      ocrWorkers.shutdown();
+      translateWorkers.shutdown();
+   }
+
+   /**
+    * Cancel whatever is left of a page (OCR and translations that have been started).
+    */
+   private static void cancel(List<Future<Future<String>>> jobs) {
+      for (Future<Future<String>> job : jobs) {
+         if (job.cancel(true)) {
+            continue;
+         }
+
+         try {
+            job.get().cancel(true);
+         } catch (Exception ex) {
+            // The OCR failed, so there is no translation to cancel.
+         }
+      }
+   }
+
+   /**
+    * Find the characters in a bubble.
+    * No character images are made, see recognize().
+    */
+   public static TextLayout segment(BubbleDetection.BubbleInfo bubble) throws Exception {
+      return segment(bubble, TextImage.Segmentation.GRID);
+   }
+
+   public static TextLayout segment(BubbleDetection.BubbleInfo bubble,
+                                    TextImage.Segmentation segmentation) throws Exception {
+      return TextImage.layout(bubble.getGrayRaster(), segmentation);
+   }
+
+   /**
+    * Classify all the characters in a bubble and put them together.
+    * The characters are streamed straight from segmentation into the classifier,
+    *  so only one character image exists at a time.
+    */
+   public String recognize(TextLayout layout) throws Exception {
+      final StringBuilder text = new StringBuilder();
+
+      layout.visitCharacters(new CharacterCell.Visitor() {
+         public void visit(CharacterCell cell) throws Exception {
+            text.append(classy.classify(cell));
+         }
+      });
+
+      return text.toString().trim();
+   }
+
+   /**
+    * Classify all the characters in a bubble and put them together.
+    */
+   public String recognize(List<MagickImage> characterImages) throws Exception {
+      StringBuilder text = new StringBuilder();
+
+      for (MagickImage image : characterImages) {
+         text.append(classy.classify(image));
+      }
+
+      return text.toString().trim();
+   }
+
+   public String translateText(String text) {
+      return trans.translate(text);
+   }
+
+   /**
+    * Draw each translation over its bubble (the whole bounding box).
+    * |translations| lines up with |bubbles|.
+    */
+   public static MagickImage composite(MagickImage baseImage,
+                                       BubbleDetection.BubbleInfo[] bubbles,
+                                       String[] translations) throws Exception {
+      return composite(baseImage, bubbles, translations, false);
+   }
+
+   /**
+    * Same as above, but if |maskToSpans| only the bubble itself is drawn over
+    *  (see BubbleInfo.paste()).
+    * The page only goes out of and back into JMagick once, no matter how many bubbles there are.
+    */
+   public static MagickImage composite(MagickImage baseImage,
+                                       BubbleDetection.BubbleInfo[] bubbles,
+                                       String[] translations,
+                                       boolean maskToSpans) throws Exception {
+      Dimension dimensions = baseImage.getDimension();
+
+      BufferPool pool = BufferPool.shared();
+      byte[] pixels = pool.leaseBytes(dimensions.width * dimensions.height * 3);
+
+      try {
+         Filters.rgbPixels(baseImage, pixels);
+         composite(pixels, dimensions.width, bubbles, translations, maskToSpans);
+         baseImage.constituteImage(dimensions.width, dimensions.height, "RGB", pixels);
+      } finally {
+         pool.release(pixels);
       }
 
       return baseImage;
    }
+
+   /**
+    * Draw each translation straight into the page's RGB pixels.
+    * Only the bubbles get touched, so this is linear in the size of the bubbles
+    *  (not the number of bubbles times the size of the page).
+    */
+   public static void composite(byte[] pagePixels, int pageWidth,
+                                BubbleDetection.BubbleInfo[] bubbles,
+                                String[] translations,
+                                boolean maskToSpans) throws Exception {
+      assert(bubbles.length == translations.length);
+
+      BufferPool pool = BufferPool.shared();
+
+      for (int i = 0; i < bubbles.length; i++) {
+         MagickImage transBubble = ImageUtils.generateString(translations[i], false,
+                                                             bubbles[i].width,
+                                                             bubbles[i].height);
+         Dimension dimensions = transBubble.getDimension();
+         byte[] rgb = pool.leaseBytes(dimensions.width * dimensions.height * 3);
+
+         try {
+            Filters.rgbPixels(transBubble, rgb);
+            transBubble.destroyImages();
+
+            bubbles[i].paste(pagePixels, pageWidth,
+                             rgb, dimensions.width, dimensions.height,
+                             maskToSpans);
+         } finally {
+            pool.release(rgb);
+         }
+      }
+   }
+
+   /**
+    * Daemon workers, so an idle translator does not keep the JVM up.
+    */
+   private static class DaemonFactory implements ThreadFactory {
+      private final String name;
+      private final AtomicInteger count;
+
+      public DaemonFactory(String name) {
+         this.name = name;
+         count = new AtomicInteger(0);
+      }
+
+      public Thread newThread(Runnable runnable) {
+         Thread thread = new Thread(runnable,
+                                    String.format("ImageTranslator-%s-%d",
+                                                  name, count.getAndIncrement()));
+         thread.setDaemon(true);
+         return thread;
+      }
+   }
 }
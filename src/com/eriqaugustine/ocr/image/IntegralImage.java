@@ -0,0 +1,191 @@
+package com.eriqaugustine.ocr.image;
+
+import magick.MagickImage;
+
+/**
+ * A summed-area table over the black pixels of an image.
+ * Build it once and then the number of black pixels in any rectangle is just four lookups,
+ *  so densities, grids of densities, and row/column profiles are all O(1) per region.
+ *
+ * A pixel is black if its grey value is at most |threshold| (the same as Filters.bwPixels()).
+ */
+public class IntegralImage {
+   private final int width;
+   private final int height;
+
+   // (|width| + 1) x (|height| + 1).
+   // sums[(row + 1) * (width + 1) + (col + 1)] is the number of black pixels in
+   //  [0, row] x [0, col]. The first row and column are all zero.
+   private final int[] sums;
+
+   /**
+    * Build from an image, using Filters.bwPixels()'s idea of black.
+    */
+   public static IntegralImage fromImage(MagickImage image, int threshold) throws Exception {
+      return new IntegralImage(GrayRaster.fromImage(image), threshold);
+   }
+
+   public static IntegralImage fromImage(MagickImage image) throws Exception {
+      return fromImage(image, Filters.DEFAULT_BW_THRESHOLD);
+   }
+
+   /**
+    * |gray| is a single channel image.
+    */
+   public IntegralImage(byte[] gray, int width, int threshold) {
+      this(new GrayRaster(gray, width), threshold);
+   }
+
+   public IntegralImage(GrayRaster gray, int threshold) {
+      this(BinaryRaster.fromGray(gray, threshold));
+   }
+
+   /**
+    * |black| is a single channel image where true is black.
+    */
+   public IntegralImage(boolean[] black, int width) {
+      this(BinaryRaster.fromBooleans(black, width));
+   }
+
+   /**
+    * All the other constructors end up here, so the table is only built in one place.
+    */
+   public IntegralImage(BinaryRaster black) {
+      this.width = black.width;
+      this.height = black.height;
+
+      int stride = width + 1;
+      sums = new int[stride * (height + 1)];
+
+      for (int row = 0; row < height; row++) {
+         int rowSum = 0;
+         int sumBase = (row + 1) * stride;
+         long word = 0;
+
+         for (int col = 0; col < width; col++) {
+            if ((col & 63) == 0) {
+               word = black.getWord(row, col >>> 6);
+            }
+
+            rowSum += (int)(word & 1);
+            word >>>= 1;
+
+            sums[sumBase + col + 1] = sums[sumBase - stride + col + 1] + rowSum;
+         }
+      }
+   }
+
+   public int getWidth() {
+      return width;
+   }
+
+   public int getHeight() {
+      return height;
+   }
+
+   /**
+    * The number of black pixels in the region.
+    */
+   public int count(int startRow, int numRows, int startCol, int numCols) {
+      if (numRows <= 0 || numCols <= 0) {
+         return 0;
+      }
+
+      int stride = width + 1;
+      int top = startRow * stride;
+      int bottom = (startRow + numRows) * stride;
+      int left = startCol;
+      int right = startCol + numCols;
+
+      return sums[bottom + right] - sums[bottom + left] - sums[top + right] + sums[top + left];
+   }
+
+   /**
+    * The number of black pixels in the whole image.
+    */
+   public int count() {
+      return sums[sums.length - 1];
+   }
+
+   /**
+    * Density is the number of black pixels over the size of the region.
+    */
+   public double density(int startRow, int numRows, int startCol, int numCols) {
+      return (double)count(startRow, numRows, startCol, numCols) / (numRows * numCols);
+   }
+
+   public double density() {
+      return density(0, height, 0, width);
+   }
+
+   /**
+    * Split the image into a |rows| x |cols| grid and get the density of each region.
+    * Note: Because pixels are atomic, some pixels on the right and bottom edges may be lost.
+    *  The alternative to losing pixels would be to have uneven regions.
+    * Returns null if the image is too small to split up.
+    */
+   public double[][] densityMap(int rows, int cols) {
+      assert(rows > 0 && cols > 0);
+
+      int rowDelta = height / rows;
+      int colDelta = width / cols;
+
+      if (rowDelta == 0 || colDelta == 0) {
+         return null;
+      }
+
+      double[][] densityMap = new double[rows][cols];
+
+      for (int row = 0; row < rows; row++) {
+         for (int col = 0; col < cols; col++) {
+            densityMap[row][col] = density(row * rowDelta, rowDelta, col * colDelta, colDelta);
+         }
+      }
+
+      return densityMap;
+   }
+
+   /**
+    * Same as densityMap(), but square and flattened (row major).
+    * This one does not give up on small images, tiny regions just have a density of NaN.
+    */
+   public double[] regionDensities(int regionsPerSide) {
+      double[] densities = new double[regionsPerSide * regionsPerSide];
+
+      for (int regionRow = 0; regionRow < regionsPerSide; regionRow++) {
+         for (int regionCol = 0; regionCol < regionsPerSide; regionCol++) {
+            densities[regionRow * regionsPerSide + regionCol] =
+                  density(regionRow * height / regionsPerSide, height / regionsPerSide,
+                          regionCol * width / regionsPerSide, width / regionsPerSide);
+         }
+      }
+
+      return densities;
+   }
+
+   /**
+    * The number of black pixels in each row of the region.
+    */
+   public int[] rowProfile(int startRow, int numRows, int startCol, int numCols) {
+      int[] profile = new int[numRows];
+
+      for (int i = 0; i < numRows; i++) {
+         profile[i] = count(startRow + i, 1, startCol, numCols);
+      }
+
+      return profile;
+   }
+
+   /**
+    * The number of black pixels in each column of the region.
+    */
+   public int[] colProfile(int startRow, int numRows, int startCol, int numCols) {
+      int[] profile = new int[numCols];
+
+      for (int i = 0; i < numCols; i++) {
+         profile[i] = count(startRow, numRows, startCol + i, 1);
+      }
+
+      return profile;
+   }
+}
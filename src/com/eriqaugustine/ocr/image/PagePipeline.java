@@ -0,0 +1,370 @@
+package com.eriqaugustine.ocr.image;
+
+import com.eriqaugustine.ocr.utils.BufferPool;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Translate a whole bunch of pages (eg. a volume) at once.
+ * Every step of ImageTranslator.translate() is its own stage with its own workers,
+ *  and the stages are connected with small bounded queues.
+ * A stage that gets ahead just blocks until the next stage catches up,
+ *  so only a few pages are ever in memory and the whole thing runs about as
+ *  fast as the slowest stage (instead of the sum of all the stages).
+ */
+public class PagePipeline {
+   private static Logger logger = LogManager.getLogger(PagePipeline.class.getName());
+
+   // How many pages can wait between two stages.
+   public static final int DEFAULT_QUEUE_SIZE = 2;
+
+   // Translation is mostly waiting on the network.
+   public static final int DEFAULT_TRANSLATE_WORKERS = ImageTranslator.DEFAULT_TRANSLATE_WORKERS;
+
+   /**
+    * The stages, in order.
+    */
+   public static enum Stage {
+      DECODE,
+      DETECT,
+      SEGMENT,
+      CLASSIFY,
+      TRANSLATE,
+      COMPOSITE,
+      ENCODE
+   }
+
+   // Goes through the pipeline after the last page.
+   private static final Page DONE = new Page(-1, null, null);
+
+   private final ImageTranslator translator;
+   private final int queueSize;
+
+   // Decoded pages, null if pages should always be decoded.
+   private RasterCache cache;
+
+   // Only draw translations over the bubbles themselves (not their bounding boxes).
+   private boolean maskToSpans;
+
+   // {stage ordinal: number of workers}
+   private final int[] numWorkers;
+
+   public PagePipeline(ImageTranslator translator) {
+      this(translator, DEFAULT_QUEUE_SIZE);
+   }
+
+   public PagePipeline(ImageTranslator translator, int queueSize) {
+      assert(queueSize > 0);
+
+      this.translator = translator;
+      this.queueSize = queueSize;
+      cache = null;
+      maskToSpans = false;
+
+      // The image work (including decoding, which is all in Java) can use every core,
+      //  writing files and compositing are cheap enough for one worker.
+      int cores = Runtime.getRuntime().availableProcessors();
+
+      numWorkers = new int[Stage.values().length];
+      Arrays.fill(numWorkers, 1);
+      numWorkers[Stage.DECODE.ordinal()] = cores;
+      numWorkers[Stage.DETECT.ordinal()] = cores;
+      numWorkers[Stage.SEGMENT.ordinal()] = cores;
+      numWorkers[Stage.CLASSIFY.ordinal()] = cores;
+      numWorkers[Stage.TRANSLATE.ordinal()] = DEFAULT_TRANSLATE_WORKERS;
+   }
+
+   public void setWorkers(Stage stage, int workers) {
+      assert(workers > 0);
+      numWorkers[stage.ordinal()] = workers;
+   }
+
+   public int getWorkers(Stage stage) {
+      return numWorkers[stage.ordinal()];
+   }
+
+   /**
+    * Keep decoded pages in |cache| (eg. RasterCache.fromProps()),
+    *  so running the same pages again skips decoding. Null turns caching off.
+    */
+   public void setCache(RasterCache cache) {
+      this.cache = cache;
+   }
+
+   /**
+    * See ImageTranslator.composite().
+    */
+   public void setMaskToSpans(boolean maskToSpans) {
+      this.maskToSpans = maskToSpans;
+   }
+
+   /**
+    * Translate every file in |inDirectory| (in name order).
+    */
+   public List<File> run(File inDirectory, File outDirectory) throws InterruptedException {
+      File[] files = inDirectory.listFiles();
+      if (files == null) {
+         logger.error("Not a directory: " + inDirectory);
+         return new ArrayList<File>();
+      }
+
+      Arrays.sort(files);
+
+      List<File> imageFiles = new ArrayList<File>();
+      for (File file : files) {
+         if (file.isFile()) {
+            imageFiles.add(file);
+         }
+      }
+
+      return run(imageFiles, outDirectory);
+   }
+
+   /**
+    * Translate every file in |files|.
+    * Each translated page is written to |outDirectory| with the same name it came in with.
+    * Pages that fail are logged and skipped.
+    * @return The files that were written, in the same order as |files|.
+    */
+   public List<File> run(List<File> files, File outDirectory) throws InterruptedException {
+      outDirectory.mkdirs();
+
+      Stage[] stages = Stage.values();
+
+      // queues[i] feeds stages[i], the last queue is the output.
+      List<BlockingQueue<Page>> queues = new ArrayList<BlockingQueue<Page>>(stages.length + 1);
+      for (int i = 0; i <= stages.length; i++) {
+         queues.add(new ArrayBlockingQueue<Page>(queueSize));
+      }
+
+      List<Thread> threads = new ArrayList<Thread>();
+
+      for (int i = 0; i < stages.length; i++) {
+         final Stage stage = stages[i];
+         final BlockingQueue<Page> in = queues.get(i);
+         final BlockingQueue<Page> out = queues.get(i + 1);
+         final AtomicInteger remaining = new AtomicInteger(numWorkers[i]);
+
+         for (int j = 0; j < numWorkers[i]; j++) {
+            threads.add(new Thread(new Runnable() {
+               public void run() {
+                  work(stage, in, out, remaining);
+               }
+            }, String.format("PagePipeline-%s-%d", stage, j)));
+         }
+      }
+
+      final List<File> inFiles = files;
+      final File outDir = outDirectory;
+      final BlockingQueue<Page> first = queues.get(0);
+      threads.add(new Thread(new Runnable() {
+         public void run() {
+            try {
+               for (int i = 0; i < inFiles.size(); i++) {
+                  File inFile = inFiles.get(i);
+                  first.put(new Page(i, inFile, new File(outDir, inFile.getName())));
+               }
+
+               first.put(DONE);
+            } catch (InterruptedException ex) {
+               Thread.currentThread().interrupt();
+            }
+         }
+      }, "PagePipeline-feed"));
+
+      for (Thread thread : threads) {
+         thread.setDaemon(true);
+         thread.start();
+      }
+
+      File[] written = new File[files.size()];
+      BlockingQueue<Page> last = queues.get(stages.length);
+
+      try {
+         while (true) {
+            Page page = last.take();
+
+            if (page == DONE) {
+               break;
+            }
+
+            if (page.failure == null) {
+               written[page.index] = page.outFile;
+            }
+         }
+
+         for (Thread thread : threads) {
+            thread.join();
+         }
+      } catch (InterruptedException ex) {
+         for (Thread thread : threads) {
+            thread.interrupt();
+         }
+
+         throw ex;
+      }
+
+      List<File> rtn = new ArrayList<File>();
+      for (File file : written) {
+         if (file != null) {
+            rtn.add(file);
+         }
+      }
+
+      logger.debug(BufferPool.shared());
+
+      return rtn;
+   }
+
+   /**
+    * The loop for a single worker.
+    * Pages that already failed are just passed along.
+    * Anything thrown while processing a page (even an Error) just fails that page.
+    */
+   private void work(Stage stage,
+                     BlockingQueue<Page> in, BlockingQueue<Page> out,
+                     AtomicInteger remaining) {
+      try {
+         while (true) {
+            Page page = in.take();
+
+            if (page == DONE) {
+               // Put it back for the other workers on this stage.
+               in.put(DONE);
+               return;
+            }
+
+            if (page.failure == null) {
+               try {
+                  process(stage, page);
+               } catch (Throwable ex) {
+                  logger.error(String.format("Failed to %s %s.", stage, page.inFile), ex);
+                  page.fail(ex);
+               }
+            }
+
+            out.put(page);
+         }
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      } finally {
+         // The last one out tells the next stage (even if it died), or run() would wait forever.
+         if (remaining.decrementAndGet() == 0) {
+            try {
+               out.put(DONE);
+            } catch (InterruptedException ex) {
+               Thread.currentThread().interrupt();
+            }
+         }
+      }
+   }
+
+   private void process(Stage stage, Page page) throws Exception {
+      switch (stage) {
+         case DECODE:
+            if (cache != null) {
+               RasterCache.Entry entry = cache.read(page.inFile, 3);
+               page.width = entry.width;
+               page.pixels = entry.pixels;
+            } else {
+               BufferedImage decoded = RasterIO.decode(page.inFile);
+               page.width = decoded.getWidth();
+               // Held by the page before it is filled, so fail() can give it back.
+               page.pixels = BufferPool.shared().leaseBytes(decoded.getWidth() *
+                                                            decoded.getHeight() * 3);
+               RasterIO.rgbPixels(decoded, page.pixels);
+            }
+            break;
+         case DETECT:
+            page.bubbles = BubbleDetection.extractBubblesWithInfo(page.pixels, page.width);
+            break;
+         case SEGMENT:
+            page.layouts = new TextLayout[page.bubbles.length];
+            for (int i = 0; i < page.bubbles.length; i++) {
+               page.layouts[i] = ImageTranslator.segment(page.bubbles[i]);
+            }
+            break;
+         case CLASSIFY:
+            page.texts = new String[page.bubbles.length];
+            for (int i = 0; i < page.bubbles.length; i++) {
+               page.texts[i] = translator.recognize(page.layouts[i]);
+               logger.debug(page.texts[i]);
+            }
+            page.layouts = null;
+            break;
+         case TRANSLATE:
+            page.translations = new String[page.texts.length];
+            for (int i = 0; i < page.texts.length; i++) {
+               page.translations[i] = translator.translateText(page.texts[i]);
+            }
+            break;
+         case COMPOSITE:
+            // The translations go right into the decoded pixels.
+            // The bubbles still point at them, but they are done after this.
+            ImageTranslator.composite(page.pixels, page.width,
+                                      page.bubbles, page.translations,
+                                      maskToSpans);
+            page.bubbles = null;
+            break;
+         case ENCODE:
+            RasterIO.writeRGB(page.pixels, page.width, page.outFile);
+            BufferPool.shared().release(page.pixels);
+            page.pixels = null;
+            break;
+         default:
+            assert(false);
+      }
+   }
+
+   /**
+    * Everything known about a page as it goes through the pipeline.
+    * Each stage fills in its part and drops whatever is no longer needed.
+    * The queues make sure that the next stage sees everything the last one did.
+    */
+   private static class Page {
+      public final int index;
+      public final File inFile;
+      public final File outFile;
+
+      // The page's RGB pixels.
+      public byte[] pixels;
+      public int width;
+      public BubbleDetection.BubbleInfo[] bubbles;
+      public TextLayout[] layouts;
+      public String[] texts;
+      public String[] translations;
+
+      public Throwable failure;
+
+      public Page(int index, File inFile, File outFile) {
+         this.index = index;
+         this.inFile = inFile;
+         this.outFile = outFile;
+
+         failure = null;
+      }
+
+      public void fail(Throwable ex) {
+         failure = ex;
+
+         // The pixels came from the pool.
+         BufferPool.shared().release(pixels);
+
+         pixels = null;
+         bubbles = null;
+         layouts = null;
+         texts = null;
+         translations = null;
+      }
+   }
+}
@@ -0,0 +1,317 @@
+package com.eriqaugustine.ocr.image;
+
+import com.eriqaugustine.ocr.utils.BufferPool;
+import com.eriqaugustine.ocr.utils.Props;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A disk cache of decoded pages, so reprocessing a volume does not decode every page again.
+ * Pages are keyed by the sha1 of the file's contents and stored raw
+ *  (a small header and then the pixels), so a hit is just mapping the file.
+ *
+ * The cache is bounded by |maxBytes|. When it gets too big, the least recently used
+ *  pages are evicted (a hit touches the file's modified time, so this holds across runs).
+ * Anything that goes wrong with the cache just falls back to decoding.
+ *
+ * Page pixels come out of BufferPool, so callers can give them back when they are done.
+ */
+public class RasterCache {
+   private static Logger logger = LogManager.getLogger(RasterCache.class.getName());
+
+   public static final int DEFAULT_MAX_MB = 1024;
+
+   private static final String RASTER_CACHE_PREFIX = "raster";
+
+   // "GRAY"
+   private static final int MAGIC = 0x47524159;
+   // magic, channels, width, height.
+   private static final int HEADER_SIZE = 16;
+
+   private final File cacheDir;
+   private final long maxBytes;
+
+   /**
+    * A decoded page: |channels| (1 for grey, 3 for RGB) bytes per pixel, row major.
+    */
+   public static class Entry {
+      public final byte[] pixels;
+      public final int width;
+      public final int height;
+      public final int channels;
+
+      public Entry(byte[] pixels, int width, int height, int channels) {
+         assert(pixels.length == width * height * channels);
+
+         this.pixels = pixels;
+         this.width = width;
+         this.height = height;
+         this.channels = channels;
+      }
+
+      public GrayRaster toGray() {
+         if (channels == 1) {
+            return new GrayRaster(pixels, width);
+         }
+
+         return GrayRaster.fromRGB(pixels, width);
+      }
+   }
+
+   /**
+    * The cache under Props' CACHE_DIR (limited to RASTER_CACHE_MB).
+    * Returns null if there is no CACHE_DIR.
+    */
+   public static RasterCache fromProps() {
+      String dir = Props.getString("CACHE_DIR");
+      if (dir == null) {
+         return null;
+      }
+
+      return new RasterCache(new File(dir),
+                             Props.getInt("RASTER_CACHE_MB", DEFAULT_MAX_MB) * 1024L * 1024L);
+   }
+
+   public RasterCache(File cacheDir, long maxBytes) {
+      this.cacheDir = cacheDir;
+      this.maxBytes = maxBytes;
+   }
+
+   /**
+    * Get the grey pixels for an image file.
+    */
+   public GrayRaster readGray(File imageFile) throws IOException {
+      return read(imageFile, 1).toGray();
+   }
+
+   /**
+    * Get the pixels for an image file with |channels| (1 or 3) channels.
+    * On a miss, the file is decoded (with RasterIO) and put into the cache.
+    */
+   public Entry read(File imageFile, int channels) throws IOException {
+      assert(channels == 1 || channels == 3);
+
+      File cacheFile = getCacheFile(imageFile, channels);
+
+      Entry entry = fetchCache(cacheFile);
+      if (entry != null) {
+         return entry;
+      }
+
+      BufferedImage decoded = RasterIO.decode(imageFile);
+      int width = decoded.getWidth();
+      int height = decoded.getHeight();
+
+      if (channels == 1) {
+         entry = new Entry(RasterIO.toGray(decoded).compact(), width, height, 1);
+      } else {
+         entry = new Entry(RasterIO.rgbPixels(decoded,
+                                              BufferPool.shared().leaseBytes(width * height * 3)),
+                           width, height, 3);
+      }
+
+      putCache(cacheFile, entry);
+
+      return entry;
+   }
+
+   /**
+    * Map a cached grey page and read it as a source, without ever copying the whole page.
+    * Returns null if the page is not in the cache (use read() to put it in).
+    */
+   public GraySource mapGray(File imageFile) throws IOException {
+      File cacheFile = getCacheFile(imageFile, 1);
+      if (!cacheFile.isFile()) {
+         return null;
+      }
+
+      MappedByteBuffer mapped = map(cacheFile);
+      if (mapped == null || mapped.getInt(4) != 1) {
+         return null;
+      }
+
+      int width = mapped.getInt(8);
+      int height = mapped.getInt(12);
+
+      mapped.position(HEADER_SIZE);
+      return GraySource.fromBuffer(mapped.slice(), width, height);
+   }
+
+   private File getCacheFile(File imageFile, int channels) throws IOException {
+      InputStream in = new FileInputStream(imageFile);
+      try {
+         String hash = DigestUtils.sha1Hex(in);
+         return new File(cacheDir,
+                         String.format("%s_%s_%d", RASTER_CACHE_PREFIX, hash, channels));
+      } finally {
+         in.close();
+      }
+   }
+
+   /**
+    * Map a cache file and check its header.
+    * Returns null if it is not a valid cache file.
+    */
+   private static MappedByteBuffer map(File cacheFile) throws IOException {
+      RandomAccessFile file = new RandomAccessFile(cacheFile, "r");
+      try {
+         FileChannel channel = file.getChannel();
+         long size = channel.size();
+
+         if (size < HEADER_SIZE) {
+            return null;
+         }
+
+         // The mapping stays good after the file is closed.
+         MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+         long expected = HEADER_SIZE +
+                         (long)mapped.getInt(4) * mapped.getInt(8) * mapped.getInt(12);
+
+         if (mapped.getInt(0) != MAGIC || size != expected) {
+            return null;
+         }
+
+         return mapped;
+      } finally {
+         file.close();
+      }
+   }
+
+   private Entry fetchCache(File cacheFile) {
+      try {
+         if (!cacheFile.isFile()) {
+            return null;
+         }
+
+         MappedByteBuffer mapped = map(cacheFile);
+         if (mapped == null) {
+            logger.warn("Bad raster cache file: " + cacheFile);
+            cacheFile.delete();
+            return null;
+         }
+
+         int channels = mapped.getInt(4);
+         int width = mapped.getInt(8);
+         int height = mapped.getInt(12);
+
+         byte[] pixels = BufferPool.shared().leaseBytes(width * height * channels);
+         mapped.position(HEADER_SIZE);
+         mapped.get(pixels);
+
+         // Most recently used.
+         cacheFile.setLastModified(System.currentTimeMillis());
+
+         return new Entry(pixels, width, height, channels);
+      } catch (Exception ex) {
+         logger.error("Error fetching raster cache.", ex);
+         return null;
+      }
+   }
+
+   private void putCache(File cacheFile, Entry entry) {
+      File tempFile = new File(cacheFile.getPath() + ".tmp" + Thread.currentThread().getId());
+
+      // The channel would copy a heap buffer into a temporary direct one anyways,
+      //  so build the whole file in a (pooled) direct buffer.
+      BufferPool pool = BufferPool.shared();
+      ByteBuffer buffer = pool.leaseDirect(HEADER_SIZE + entry.pixels.length);
+
+      try {
+         cacheDir.mkdirs();
+
+         buffer.putInt(MAGIC).putInt(entry.channels).putInt(entry.width).putInt(entry.height);
+         buffer.put(entry.pixels);
+         buffer.flip();
+
+         RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+         try {
+            // Left over from a crash.
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+
+            while (buffer.hasRemaining()) {
+               channel.write(buffer);
+            }
+         } finally {
+            file.close();
+         }
+
+         // Readers only ever see a whole file.
+         if (!tempFile.renameTo(cacheFile)) {
+            throw new IOException("Unable to move " + tempFile + " to " + cacheFile);
+         }
+      } catch (Exception ex) {
+         logger.error("Error creating raster cache.", ex);
+         tempFile.delete();
+         return;
+      } finally {
+         pool.release(buffer);
+      }
+
+      evict();
+   }
+
+   /**
+    * Remove the least recently used pages until the cache fits in |maxBytes|.
+    */
+   private synchronized void evict() {
+      File[] files = cacheDir.listFiles();
+      if (files == null) {
+         return;
+      }
+
+      List<File> cacheFiles = new ArrayList<File>();
+      long totalBytes = 0;
+
+      for (File file : files) {
+         if (file.isFile() && file.getName().startsWith(RASTER_CACHE_PREFIX + "_") &&
+             !file.getName().contains(".tmp")) {
+            cacheFiles.add(file);
+            totalBytes += file.length();
+         }
+      }
+
+      if (totalBytes <= maxBytes) {
+         return;
+      }
+
+      // Snapshot the times, they can change while sorting.
+      final long[] times = new long[cacheFiles.size()];
+      Integer[] order = new Integer[cacheFiles.size()];
+      for (int i = 0; i < order.length; i++) {
+         times[i] = cacheFiles.get(i).lastModified();
+         order[i] = i;
+      }
+
+      Arrays.sort(order, new Comparator<Integer>() {
+         public int compare(Integer a, Integer b) {
+            return Long.compare(times[a.intValue()], times[b.intValue()]);
+         }
+      });
+
+      for (int i = 0; i < order.length && totalBytes > maxBytes; i++) {
+         File file = cacheFiles.get(order[i].intValue());
+         long size = file.length();
+
+         if (file.delete()) {
+            totalBytes -= size;
+         }
+      }
+   }
+}
@@ -0,0 +1,233 @@
+package com.eriqaugustine.ocr.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.imageio.ImageIO;
+
+/**
+ * Read and write images with ImageIO instead of JMagick.
+ * Pages go straight into rasters (or packed RGB pixels), so detection, segmentation,
+ *  and PDC never need the native library to be loaded.
+ * Unlike JMagick, all of this is safe to do from many threads at once.
+ *
+ * Grey is the average of the channels, the same as Filters.grayPixels().
+ * Alpha is ignored (the same as dispatching "RGB" out of a MagickImage).
+ */
+public class RasterIO {
+   public static final String DEFAULT_FORMAT = "png";
+
+   /**
+    * Decode an image (anything ImageIO can read, eg. PNG and JPEG).
+    */
+   public static BufferedImage decode(File file) throws IOException {
+      BufferedImage image = ImageIO.read(file);
+
+      if (image == null) {
+         throw new IOException("Unable to decode: " + file);
+      }
+
+      return image;
+   }
+
+   public static BufferedImage decode(InputStream in) throws IOException {
+      BufferedImage image = ImageIO.read(in);
+
+      if (image == null) {
+         throw new IOException("Unable to decode stream.");
+      }
+
+      return image;
+   }
+
+   public static GrayRaster read(File file) throws IOException {
+      return toGray(decode(file));
+   }
+
+   public static GrayRaster read(String path) throws IOException {
+      return read(new File(path));
+   }
+
+   public static GrayRaster read(InputStream in) throws IOException {
+      return toGray(decode(in));
+   }
+
+   /**
+    * Get the RGB pixels (3 bytes per pixel, row major) of an image.
+    */
+   public static byte[] rgbPixels(BufferedImage image) {
+      return rgbPixels(image, new byte[image.getWidth() * image.getHeight() * 3]);
+   }
+
+   /**
+    * Same as above, but the pixels are put in |rgb| (eg. from a BufferPool).
+    * Returns |rgb|.
+    */
+   public static byte[] rgbPixels(BufferedImage image, byte[] rgb) {
+      int width = image.getWidth();
+      int height = image.getHeight();
+      assert(rgb.length >= width * height * 3);
+
+      int numBands = image.getRaster().getNumBands();
+      if (isPlain(image)) {
+         // The samples are already the values, so just pull them out a row at a time.
+         WritableRaster raster = image.getRaster();
+         int[] samples = new int[width * numBands];
+
+         for (int row = 0; row < height; row++) {
+            raster.getPixels(0, row, width, 1, samples);
+            int base = row * width * 3;
+
+            for (int col = 0; col < width; col++) {
+               int sample = col * numBands;
+
+               if (numBands < 3) {
+                  byte value = (byte)samples[sample];
+                  rgb[base + col * 3 + 0] = value;
+                  rgb[base + col * 3 + 1] = value;
+                  rgb[base + col * 3 + 2] = value;
+               } else {
+                  rgb[base + col * 3 + 0] = (byte)samples[sample + 0];
+                  rgb[base + col * 3 + 1] = (byte)samples[sample + 1];
+                  rgb[base + col * 3 + 2] = (byte)samples[sample + 2];
+               }
+            }
+         }
+
+         return rgb;
+      }
+
+      // Anything else (palettes, 16 bit, etc) goes through the color model.
+      int[] argb = new int[width];
+      for (int row = 0; row < height; row++) {
+         image.getRGB(0, row, width, 1, argb, 0, width);
+         int base = row * width * 3;
+
+         for (int col = 0; col < width; col++) {
+            rgb[base + col * 3 + 0] = (byte)(argb[col] >> 16);
+            rgb[base + col * 3 + 1] = (byte)(argb[col] >> 8);
+            rgb[base + col * 3 + 2] = (byte)argb[col];
+         }
+      }
+
+      return rgb;
+   }
+
+   /**
+    * Convert a decoded image into a grey raster.
+    */
+   public static GrayRaster toGray(BufferedImage image) {
+      int width = image.getWidth();
+      int height = image.getHeight();
+
+      // Grey images do not need to go through RGB at all.
+      if (isPlain(image) && image.getRaster().getNumBands() < 3) {
+         WritableRaster raster = image.getRaster();
+         int numBands = raster.getNumBands();
+         byte[] gray = new byte[width * height];
+         int[] samples = new int[width * numBands];
+
+         for (int row = 0; row < height; row++) {
+            raster.getPixels(0, row, width, 1, samples);
+            for (int col = 0; col < width; col++) {
+               gray[row * width + col] = (byte)samples[col * numBands];
+            }
+         }
+
+         return new GrayRaster(gray, width);
+      }
+
+      return GrayRaster.fromRGB(rgbPixels(image), width);
+   }
+
+   /**
+    * Encode a grey raster. The format comes from |file|'s extension.
+    */
+   public static void write(GrayRaster raster, File file) throws IOException {
+      BufferedImage image = new BufferedImage(raster.width, raster.height,
+                                              BufferedImage.TYPE_BYTE_GRAY);
+      WritableRaster out = image.getRaster();
+
+      byte[] row = new byte[raster.width];
+      for (int i = 0; i < raster.height; i++) {
+         System.arraycopy(raster.pixels, raster.index(i, 0), row, 0, raster.width);
+         out.setDataElements(0, i, raster.width, 1, row);
+      }
+
+      encode(image, file);
+   }
+
+   public static void write(BinaryRaster raster, File file) throws IOException {
+      write(raster.toGray(), file);
+   }
+
+   /**
+    * Encode RGB pixels (3 bytes per pixel, row major).
+    */
+   public static void writeRGB(byte[] rgbPixels, int width, File file) throws IOException {
+      int height = rgbPixels.length / 3 / width;
+
+      // TYPE_3BYTE_BGR stores its bands backwards, but the raster still hands out R, G, B.
+      BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+      WritableRaster out = image.getRaster();
+
+      int[] samples = new int[width * 3];
+      for (int row = 0; row < height; row++) {
+         int base = row * width * 3;
+         for (int i = 0; i < samples.length; i++) {
+            samples[i] = 0xFF & rgbPixels[base + i];
+         }
+
+         out.setPixels(0, row, width, 1, samples);
+      }
+
+      encode(image, file);
+   }
+
+   public static void encode(BufferedImage image, File file) throws IOException {
+      if (!ImageIO.write(image, formatName(file), file)) {
+         throw new IOException("No writer for: " + file);
+      }
+   }
+
+   /**
+    * The format to write |file| with, from its extension.
+    */
+   private static String formatName(File file) {
+      String name = file.getName();
+      int dot = name.lastIndexOf('.');
+
+      if (dot == -1 || dot == name.length() - 1) {
+         return DEFAULT_FORMAT;
+      }
+
+      return name.substring(dot + 1).toLowerCase();
+   }
+
+   /**
+    * True if the samples in the image's raster are the actual (8 bit) channel values.
+    * That is every grey or RGB(A) image that PNG and JPEG decode into,
+    *  but not palettes or 16 bit images.
+    */
+   private static boolean isPlain(BufferedImage image) {
+      if (!(image.getColorModel() instanceof ComponentColorModel)) {
+         return false;
+      }
+
+      int numColors = image.getColorModel().getNumColorComponents();
+      if (numColors != 1 && numColors != 3) {
+         return false;
+      }
+
+      for (int size : image.getSampleModel().getSampleSize()) {
+         if (size != 8) {
+            return false;
+         }
+      }
+
+      return true;
+   }
+}
@@ -0,0 +1,403 @@
+package com.eriqaugustine.ocr.image;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Label blobs one row at a time.
+ * This finds the same (4-connected, non-edge) blobs as BubbleDetection's labeling,
+ *  but it only ever holds onto the labels for the last row.
+ * Blobs are not built, only their statistics are collected (see Component).
+ * Once a blob does not continue onto the next row, it is done and kept (if it is big enough).
+ *
+ * Every row, the labels that are still alive are packed down into [0, width),
+ *  so all the state is proportional to the width of the image.
+ */
+public class StreamingLabeler {
+   private static final int NO_LABEL = -1;
+
+   private final int width;
+   private final int height;
+   private final int minComponentSize;
+
+   // The label for every pixel in the last row (NO_LABEL for edges).
+   private int[] prevLabels;
+   private int numPrevLabels;
+
+   private int[] curLabels;
+
+   // Union-find over the labels in the last row and the current row.
+   private int[] unionParents;
+
+   // Statistics, indexed by label.
+   // The current set is for the row being labeled, the next set is used when packing.
+   private Stats stats;
+   private Stats nextStats;
+
+   // Scratch for packing the labels.
+   private int[] packed;
+
+   private int nextRow;
+
+   private List<Component> components;
+
+   /**
+    * |minComponentSize| is the smallest component to bother keeping.
+    */
+   public StreamingLabeler(int width, int height, int minComponentSize) {
+      this.width = width;
+      this.height = height;
+      this.minComponentSize = minComponentSize;
+
+      // At most half of a row (rounded up) can be different labels,
+      //  so the last row and the current row together will not go over this.
+      int maxLabels = width + 2;
+
+      prevLabels = new int[width];
+      curLabels = new int[width];
+      numPrevLabels = 0;
+
+      unionParents = new int[maxLabels];
+      stats = new Stats(maxLabels);
+      nextStats = new Stats(maxLabels);
+      packed = new int[maxLabels];
+
+      nextRow = 0;
+      components = new ArrayList<Component>();
+   }
+
+   /**
+    * Label the next row.
+    * The row starts at |offset| in both |edgedPixels| and |rawPixels|.
+    * A pixel is an edge if it is 0xFF in |edgedPixels|,
+    *  and it is black if it is 0 in |rawPixels|.
+    */
+   public void addRow(byte[] edgedPixels, byte[] rawPixels, int offset) {
+      assert(nextRow < height);
+
+      int row = nextRow++;
+      int numLabels = numPrevLabels;
+
+      for (int i = 0; i < numPrevLabels; i++) {
+         unionParents[i] = i;
+      }
+
+      for (int col = 0; col < width; col++) {
+         int index = offset + col;
+
+         if ((0xFF & edgedPixels[index]) == 255) {
+            curLabels[col] = NO_LABEL;
+
+            // The pixel above is up against this edge.
+            if (row > 0 && prevLabels[col] != NO_LABEL) {
+               stats.perimeter[find(prevLabels[col])]++;
+            }
+
+            continue;
+         }
+
+         int label;
+         if (col > 0 && curLabels[col - 1] != NO_LABEL) {
+            label = curLabels[col - 1];
+         } else {
+            label = numLabels++;
+            unionParents[label] = label;
+            stats.reset(label, row * width + col);
+         }
+         curLabels[col] = label;
+
+         if (row > 0 && prevLabels[col] != NO_LABEL) {
+            label = union(label, prevLabels[col]);
+         }
+
+         int root = find(label);
+         stats.add(root, row, col, rawPixels[index] == 0, cornerBit(row, col));
+
+         // Left, right, and up.
+         // Down is handled by the next row (or finish()).
+         if (col == 0 || curLabels[col - 1] == NO_LABEL) {
+            stats.perimeter[root]++;
+         }
+
+         if (col == width - 1 || (0xFF & edgedPixels[index + 1]) == 255) {
+            stats.perimeter[root]++;
+         }
+
+         if (row == 0 || prevLabels[col] == NO_LABEL) {
+            stats.perimeter[root]++;
+         }
+      }
+
+      // Anything from the last row that did not make it into this row is done.
+      for (int i = 0; i < numLabels; i++) {
+         packed[i] = NO_LABEL;
+      }
+
+      int numPacked = 0;
+      for (int col = 0; col < width; col++) {
+         if (curLabels[col] == NO_LABEL) {
+            continue;
+         }
+
+         int root = find(curLabels[col]);
+         if (packed[root] == NO_LABEL) {
+            packed[root] = numPacked;
+            nextStats.copy(numPacked, stats, root);
+            numPacked++;
+         }
+
+         curLabels[col] = packed[root];
+      }
+
+      for (int i = 0; i < numPrevLabels; i++) {
+         int root = find(i);
+         if (packed[root] == NO_LABEL) {
+            // Only close it once.
+            packed[root] = numPacked + numLabels;
+            close(stats, root);
+         }
+      }
+
+      int[] tempLabels = prevLabels;
+      prevLabels = curLabels;
+      curLabels = tempLabels;
+      numPrevLabels = numPacked;
+
+      Stats tempStats = stats;
+      stats = nextStats;
+      nextStats = tempStats;
+   }
+
+   /**
+    * Close out everything that is left (the blobs on the last row).
+    * All the rows must have been added.
+    */
+   public List<Component> finish() {
+      assert(nextRow == height);
+
+      for (int col = 0; col < width; col++) {
+         if (prevLabels[col] != NO_LABEL) {
+            // The bottom of the image.
+            stats.perimeter[prevLabels[col]]++;
+         }
+      }
+
+      for (int i = 0; i < numPrevLabels; i++) {
+         close(stats, i);
+      }
+      numPrevLabels = 0;
+
+      return components;
+   }
+
+   private void close(Stats source, int label) {
+      if (source.size[label] >= minComponentSize) {
+         components.add(new Component(source, label, width));
+      }
+   }
+
+   private int find(int label) {
+      while (unionParents[label] != label) {
+         unionParents[label] = unionParents[unionParents[label]];
+         label = unionParents[label];
+      }
+
+      return label;
+   }
+
+   /**
+    * Returns the new root.
+    */
+   private int union(int a, int b) {
+      int rootA = find(a);
+      int rootB = find(b);
+
+      if (rootA == rootB) {
+         return rootA;
+      }
+
+      // The older label is the root so that the seed stays the first pixel.
+      int root = Math.min(rootA, rootB);
+      int other = Math.max(rootA, rootB);
+
+      unionParents[other] = root;
+      stats.merge(root, other);
+
+      return root;
+   }
+
+   /**
+    * The same corners as Blob.isBorderBlob().
+    */
+   private int cornerBit(int row, int col) {
+      int index = row * width + col;
+      int length = width * height;
+
+      int bit = 0;
+
+      if (index == 0) {
+         bit |= 0x1;
+      }
+
+      if (index == length - 1) {
+         bit |= 0x2;
+      }
+
+      if (index == width - 1) {
+         bit |= 0x4;
+      }
+
+      if (index == length - width + 1) {
+         bit |= 0x8;
+      }
+
+      return bit;
+   }
+
+   /**
+    * The statistics for a finished blob.
+    */
+   public static class Component {
+      public final int size;
+      public final int blackCount;
+      public final int perimeter;
+
+      public final int minRow;
+      public final int maxRow;
+      public final int minCol;
+      public final int maxCol;
+
+      // The first pixel (in row order) of the component.
+      public final int seedRow;
+      public final int seedCol;
+
+      private final int cornerMask;
+
+      private Component(Stats stats, int label, int width) {
+         size = stats.size[label];
+         blackCount = stats.blackCount[label];
+         perimeter = stats.perimeter[label];
+
+         minRow = stats.minRow[label];
+         maxRow = stats.maxRow[label];
+         minCol = stats.minCol[label];
+         maxCol = stats.maxCol[label];
+
+         seedRow = stats.seed[label] / width;
+         seedCol = stats.seed[label] % width;
+
+         cornerMask = stats.cornerMask[label];
+      }
+
+      /**
+       * Same as Blob.isBlack().
+       */
+      public boolean isBlack() {
+         return blackCount >= size / 2;
+      }
+
+      /**
+       * Same as Blob.isBorderBlob().
+       */
+      public boolean isBorderBlob() {
+         return cornerMask == 0xF;
+      }
+
+      public int getBoundingWidth() {
+         return maxCol - minCol + 1;
+      }
+
+      public int getBoundingHeight() {
+         return maxRow - minRow + 1;
+      }
+
+      public int getBoundingSize() {
+         return getBoundingWidth() * getBoundingHeight();
+      }
+   }
+
+   /**
+    * Parallel arrays of statistics, indexed by label.
+    */
+   private static class Stats {
+      public final int[] size;
+      public final int[] blackCount;
+      public final int[] perimeter;
+      public final int[] minRow;
+      public final int[] maxRow;
+      public final int[] minCol;
+      public final int[] maxCol;
+      public final int[] seed;
+      public final int[] cornerMask;
+
+      public Stats(int capacity) {
+         size = new int[capacity];
+         blackCount = new int[capacity];
+         perimeter = new int[capacity];
+         minRow = new int[capacity];
+         maxRow = new int[capacity];
+         minCol = new int[capacity];
+         maxCol = new int[capacity];
+         seed = new int[capacity];
+         cornerMask = new int[capacity];
+      }
+
+      public void reset(int label, int seedIndex) {
+         size[label] = 0;
+         blackCount[label] = 0;
+         perimeter[label] = 0;
+         minRow[label] = Integer.MAX_VALUE;
+         maxRow[label] = -1;
+         minCol[label] = Integer.MAX_VALUE;
+         maxCol[label] = -1;
+         seed[label] = seedIndex;
+         cornerMask[label] = 0;
+      }
+
+      public void add(int label, int row, int col, boolean black, int cornerBit) {
+         size[label]++;
+         if (black) {
+            blackCount[label]++;
+         }
+
+         minRow[label] = Math.min(minRow[label], row);
+         maxRow[label] = Math.max(maxRow[label], row);
+         minCol[label] = Math.min(minCol[label], col);
+         maxCol[label] = Math.max(maxCol[label], col);
+
+         cornerMask[label] |= cornerBit;
+      }
+
+      /**
+       * Fold |other| into |label|.
+       */
+      public void merge(int label, int other) {
+         size[label] += size[other];
+         blackCount[label] += blackCount[other];
+         perimeter[label] += perimeter[other];
+
+         minRow[label] = Math.min(minRow[label], minRow[other]);
+         maxRow[label] = Math.max(maxRow[label], maxRow[other]);
+         minCol[label] = Math.min(minCol[label], minCol[other]);
+         maxCol[label] = Math.max(maxCol[label], maxCol[other]);
+
+         seed[label] = Math.min(seed[label], seed[other]);
+         cornerMask[label] |= cornerMask[other];
+      }
+
+      /**
+       * Copy |other|'s |otherLabel| into |label|.
+       */
+      public void copy(int label, Stats other, int otherLabel) {
+         size[label] = other.size[otherLabel];
+         blackCount[label] = other.blackCount[otherLabel];
+         perimeter[label] = other.perimeter[otherLabel];
+         minRow[label] = other.minRow[otherLabel];
+         maxRow[label] = other.maxRow[otherLabel];
+         minCol[label] = other.minCol[otherLabel];
+         maxCol[label] = other.maxCol[otherLabel];
+         seed[label] = other.seed[otherLabel];
+         cornerMask[label] = other.cornerMask[otherLabel];
+      }
+   }
+}
@@ -0,0 +1,479 @@
+package com.eriqaugustine.ocr.image;
+
+import com.eriqaugustine.ocr.utils.MathUtils;
+
+import magick.MagickImage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An image of text that is broken up into characters by its connected components.
+ * Unlike TextGrid, this does not assume that the characters sit in a perfect grid.
+ *
+ * The ink is labeled (with a StreamingLabeler) and then the components are grouped:
+ *  first into lines (components whose extents across the reading direction overlap),
+ *  and then into characters along each line.
+ * Because characters are about square (and about the same size), pieces along a line
+ *  are put together as long as they still fit in a box about as long as the lines are thick.
+ * For the same reason, neighboring lines that would still fit in a single line
+ *  (eg. a mark that sits above the rest of its character) are put together.
+ * Both reading directions are tried, and the one that gives the squarest characters wins.
+ * Gaps in the text are spaces, just like the empty cells of a TextGrid: every character
+ *  pitch of nothing along a line (from the start to the end of the whole block) is a space.
+ *
+ * Just like TextGrid, everything is done on a single grey buffer and
+ *  no images are made unless they are asked for.
+ */
+public class TextComponents extends TextLayout {
+   // Anything darker than this is ink (the same as TextGrid).
+   public static final int INK_THRESHOLD = TextGrid.INK_THRESHOLD;
+
+   // Components smaller than this are just noise (unless they touch a character).
+   public static final int MIN_COMPONENT_SIZE = 3;
+
+   // How much longer than the line is thick a character may get.
+   private static final double CHARACTER_SLACK = 0.20;
+
+   private static final int TOP = 0;
+   private static final int LEFT = 1;
+   private static final int BOTTOM = 2;
+   private static final int RIGHT = 3;
+
+   private final boolean vertical;
+
+   // The bounds ([top, left, bottom, right], inclusive) of each character, line by line.
+   // Lines are in reading order (vertical lines go right to left).
+   private final List<List<int[]>> lines;
+
+   // The number of spaces before each character of each line (and then after the last one).
+   private final List<int[]> spaces;
+
+   public static TextComponents fromImage(MagickImage image) throws Exception {
+      return new TextComponents(GrayRaster.fromImage(image));
+   }
+
+   /**
+    * |pixels| is a single channel (grey) image.
+    */
+   public TextComponents(byte[] pixels, int width) {
+      this(new GrayRaster(pixels, width));
+   }
+
+   public TextComponents(GrayRaster raster) {
+      super(raster);
+
+      List<int[]> components = new ArrayList<int[]>();
+      List<int[]> specks = new ArrayList<int[]>();
+      labelInk(raster, components, specks);
+
+      List<List<int[]>> horizontalLines = groupLines(components, false);
+      List<List<int[]>> verticalLines = groupLines(components, true);
+
+      List<int[]> horizontalSpaces = findSpaces(horizontalLines, false);
+      List<int[]> verticalSpaces = findSpaces(verticalLines, true);
+
+      double horizontalFull = fullLineRatio(horizontalSpaces);
+      double verticalFull = fullLineRatio(verticalSpaces);
+
+      double horizontalScore = squareness(horizontalLines);
+      double verticalScore = squareness(verticalLines);
+
+      if (!MathUtils.doubleEquals(horizontalFull, verticalFull)) {
+         vertical = verticalFull > horizontalFull;
+      } else if (horizontalScore == verticalScore) {
+         // Same as TextGrid: go with whichever direction has the longest lines.
+         vertical = horizontalLines.size() > verticalLines.size();
+      } else {
+         vertical = verticalScore < horizontalScore;
+      }
+
+      lines = vertical ? verticalLines : horizontalLines;
+
+      // The specks can nudge the bounds, so the spaces are found again.
+      if (attachSpecks(lines, specks)) {
+         spaces = findSpaces(lines, vertical);
+      } else {
+         spaces = vertical ? verticalSpaces : horizontalSpaces;
+      }
+   }
+
+   public boolean isVertical() {
+      return vertical;
+   }
+
+   /**
+    * Each line's characters (with the gaps as spaces), and then a space.
+    */
+   public void visitCharacters(CharacterCell.Visitor visitor) throws Exception {
+      CharacterCell cell = new CharacterCell(raster);
+
+      for (int i = 0; i < lines.size(); i++) {
+         List<int[]> line = lines.get(i);
+         int[] lineSpaces = spaces.get(i);
+
+         for (int j = 0; j <= line.size(); j++) {
+            for (int k = 0; k < lineSpaces[j]; k++) {
+               cell.setSpace();
+               visitor.visit(cell);
+            }
+
+            if (j < line.size()) {
+               cell.set(line.get(j));
+               visitor.visit(cell);
+            }
+         }
+
+         // Add in a space.
+         cell.setSpace();
+         visitor.visit(cell);
+      }
+   }
+
+   public int getNumLines() {
+      return lines.size();
+   }
+
+   public int getLineLength(int line) {
+      return lines.get(line).size();
+   }
+
+   /**
+    * Get the bounds of a character: [top, left, bottom, right] (inclusive, image coordinates).
+    */
+   public int[] getCharacterBounds(int line, int index) {
+      return lines.get(line).get(index).clone();
+   }
+
+   public MagickImage getCharacterImage(int line, int index) throws Exception {
+      return raster.view(lines.get(line).get(index)).toImage();
+   }
+
+   /**
+    * The number of spaces (gaps) before a character in a line.
+    * |index| can be the line length for the spaces after the last character.
+    */
+   public int getNumSpaces(int line, int index) {
+      return spaces.get(line)[index];
+   }
+
+   /**
+    * The number of characters in all the lines (not counting spaces).
+    */
+   public int getNumCharacters() {
+      int count = 0;
+      for (List<int[]> line : lines) {
+         count += line.size();
+      }
+      return count;
+   }
+
+   /**
+    * Get the bounds of every ink component.
+    * The ones smaller than MIN_COMPONENT_SIZE go in |specks|.
+    */
+   private static void labelInk(GrayRaster raster, List<int[]> components, List<int[]> specks) {
+      StreamingLabeler labeler = new StreamingLabeler(raster.width, raster.height, 1);
+
+      // Ink is not an edge, everything else is.
+      byte[] row = new byte[raster.width];
+      for (int i = 0; i < raster.height; i++) {
+         int base = raster.index(i, 0);
+         for (int col = 0; col < raster.width; col++) {
+            row[col] = (0xFF & raster.pixels[base + col]) < INK_THRESHOLD ? 0 : (byte)0xFF;
+         }
+
+         labeler.addRow(row, row, 0);
+      }
+
+      for (StreamingLabeler.Component component : labeler.finish()) {
+         int[] bounds = new int[]{component.minRow, component.minCol,
+                                  component.maxRow, component.maxCol};
+
+         if (component.size < MIN_COMPONENT_SIZE) {
+            specks.add(bounds);
+         } else {
+            components.add(bounds);
+         }
+      }
+   }
+
+   /**
+    * Put each speck into the character that it touches (even just diagonally,
+    *  the labeling only follows sides), the rest are noise.
+    * Specks can touch other specks, so this keeps going until nothing else is attached.
+    * Returns true if any character changed.
+    */
+   private static boolean attachSpecks(List<List<int[]>> lines, List<int[]> specks) {
+      List<int[]> remaining = new ArrayList<int[]>(specks);
+      boolean changed = false;
+      boolean attachedAny = true;
+
+      while (attachedAny) {
+         attachedAny = false;
+
+         for (int index = remaining.size() - 1; index >= 0; index--) {
+            int[] character = findTouching(lines, remaining.get(index));
+
+            if (character != null) {
+               union(character, remaining.remove(index));
+               attachedAny = true;
+               changed = true;
+            }
+         }
+      }
+
+      return changed;
+   }
+
+   /**
+    * Get the character whose bounds touch (or overlap) |bounds|, null if there is none.
+    */
+   private static int[] findTouching(List<List<int[]>> lines, int[] bounds) {
+      for (List<int[]> line : lines) {
+         for (int[] character : line) {
+            if (bounds[TOP] <= character[BOTTOM] + 1 &&
+                bounds[BOTTOM] >= character[TOP] - 1 &&
+                bounds[LEFT] <= character[RIGHT] + 1 &&
+                bounds[RIGHT] >= character[LEFT] - 1) {
+               return character;
+            }
+         }
+      }
+
+      return null;
+   }
+
+   /**
+    * Group components into lines, and then into characters along those lines.
+    */
+   private static List<List<int[]>> groupLines(List<int[]> components, boolean vertical) {
+      // The sides across and along the reading direction.
+      final int acrossStart = vertical ? LEFT : TOP;
+      final int acrossEnd = vertical ? RIGHT : BOTTOM;
+      final int alongStart = vertical ? TOP : LEFT;
+      final int alongEnd = vertical ? BOTTOM : RIGHT;
+
+      List<int[]> sorted = new ArrayList<int[]>(components);
+      Collections.sort(sorted, new Comparator<int[]>() {
+         public int compare(int[] a, int[] b) {
+            return Integer.compare(a[acrossStart], b[acrossStart]);
+         }
+      });
+
+      // Lines are just components with overlapping extents across the reading direction.
+      List<List<int[]>> lineComponents = new ArrayList<List<int[]>>();
+      // [start, end] across the reading direction for each line.
+      List<int[]> lineExtents = new ArrayList<int[]>();
+      for (int[] component : sorted) {
+         int[] extent = lineExtents.isEmpty() ? null : lineExtents.get(lineExtents.size() - 1);
+
+         if (extent == null || component[acrossStart] > extent[1]) {
+            lineComponents.add(new ArrayList<int[]>());
+            lineExtents.add(new int[]{component[acrossStart], component[acrossEnd]});
+         } else {
+            extent[1] = Math.max(extent[1], component[acrossEnd]);
+         }
+
+         lineComponents.get(lineComponents.size() - 1).add(component);
+      }
+
+      int typicalThickness = medianThickness(lineExtents);
+      int maxThickness = (int)(typicalThickness * (1 + CHARACTER_SLACK));
+
+      // Put together neighboring lines that still fit in a single line.
+      int index = 1;
+      while (index < lineComponents.size()) {
+         int[] previous = lineExtents.get(index - 1);
+         int[] extent = lineExtents.get(index);
+
+         if (extent[1] - previous[0] + 1 <= maxThickness) {
+            lineComponents.get(index - 1).addAll(lineComponents.remove(index));
+            previous[1] = Math.max(previous[1], lineExtents.remove(index)[1]);
+         } else {
+            index++;
+         }
+      }
+
+      List<List<int[]>> lines = new ArrayList<List<int[]>>();
+      for (int i = 0; i < lineComponents.size(); i++) {
+         List<int[]> line = lineComponents.get(i);
+         Collections.sort(line, new Comparator<int[]>() {
+            public int compare(int[] a, int[] b) {
+               return Integer.compare(a[alongStart], b[alongStart]);
+            }
+         });
+
+         int thickness = lineExtents.get(i)[1] - lineExtents.get(i)[0] + 1;
+         int maxLength = (int)(Math.max(thickness, typicalThickness) * (1 + CHARACTER_SLACK));
+
+         // First put together everything that overlaps along the line,
+         //  then put neighbors together while they still fit in a character.
+         List<int[]> pieces = new ArrayList<int[]>();
+         for (int[] component : line) {
+            int[] last = pieces.isEmpty() ? null : pieces.get(pieces.size() - 1);
+
+            if (last != null && component[alongStart] <= last[alongEnd]) {
+               union(last, component);
+            } else {
+               pieces.add(component.clone());
+            }
+         }
+
+         List<int[]> characters = new ArrayList<int[]>();
+         for (int[] piece : pieces) {
+            int[] last = characters.isEmpty() ? null : characters.get(characters.size() - 1);
+
+            if (last != null && piece[alongEnd] - last[alongStart] + 1 <= maxLength) {
+               union(last, piece);
+            } else {
+               characters.add(piece);
+            }
+         }
+
+         lines.add(characters);
+      }
+
+      // Vertical text is read right to left.
+      if (vertical) {
+         Collections.reverse(lines);
+      }
+
+      return lines;
+   }
+
+   /**
+    * Find the number of spaces before each character of each line (and after the last one).
+    * The pitch is the median distance between the starts of neighboring characters,
+    *  and each pitch of nothing along a line is a space.
+    * Lines are measured from the start to the end of the whole block,
+    *  so a line that starts or ends short gets spaces there too.
+    */
+   private static List<int[]> findSpaces(List<List<int[]>> lines, boolean vertical) {
+      int alongStart = vertical ? TOP : LEFT;
+      int alongEnd = vertical ? BOTTOM : RIGHT;
+
+      int blockStart = Integer.MAX_VALUE;
+      int blockEnd = -1;
+      List<Integer> steps = new ArrayList<Integer>();
+      for (List<int[]> line : lines) {
+         for (int i = 0; i < line.size(); i++) {
+            blockStart = Math.min(blockStart, line.get(i)[alongStart]);
+            blockEnd = Math.max(blockEnd, line.get(i)[alongEnd]);
+
+            if (i > 0) {
+               steps.add(line.get(i)[alongStart] - line.get(i - 1)[alongStart]);
+            }
+         }
+      }
+
+      List<int[]> rtn = new ArrayList<int[]>(lines.size());
+
+      // Without any neighbors, there is no pitch to go by.
+      if (steps.isEmpty()) {
+         for (List<int[]> line : lines) {
+            rtn.add(new int[line.size() + 1]);
+         }
+
+         return rtn;
+      }
+
+      Collections.sort(steps);
+      double pitch = steps.get(steps.size() / 2);
+
+      for (List<int[]> line : lines) {
+         int[] lineSpaces = new int[line.size() + 1];
+
+         int previousStart = blockStart - (int)pitch;
+         for (int i = 0; i < line.size(); i++) {
+            int start = line.get(i)[alongStart];
+            lineSpaces[i] = Math.max(0, (int)Math.round((start - previousStart) / pitch) - 1);
+            previousStart = start;
+         }
+
+         int lineEnd = line.get(line.size() - 1)[alongEnd];
+         lineSpaces[line.size()] = (int)Math.round((blockEnd - lineEnd) / pitch);
+
+         rtn.add(lineSpaces);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * The median thickness of lines ([start, end] across the reading direction).
+    */
+   private static int medianThickness(List<int[]> lineExtents) {
+      if (lineExtents.isEmpty()) {
+         return 0;
+      }
+
+      int[] thicknesses = new int[lineExtents.size()];
+      for (int i = 0; i < thicknesses.length; i++) {
+         thicknesses[i] = lineExtents.get(i)[1] - lineExtents.get(i)[0] + 1;
+      }
+
+      Arrays.sort(thicknesses);
+      return thicknesses[thicknesses.length / 2];
+   }
+
+   private static void union(int[] bounds, int[] other) {
+      bounds[TOP] = Math.min(bounds[TOP], other[TOP]);
+      bounds[LEFT] = Math.min(bounds[LEFT], other[LEFT]);
+      bounds[BOTTOM] = Math.max(bounds[BOTTOM], other[BOTTOM]);
+      bounds[RIGHT] = Math.max(bounds[RIGHT], other[RIGHT]);
+   }
+
+   /**
+    * The fraction of lines that start with a character and do not have a character
+    *  after a space (the same as TextGrid's full lines).
+    */
+   private static double fullLineRatio(List<int[]> spaces) {
+      if (spaces.isEmpty()) {
+         return 0;
+      }
+
+      int fullLines = 0;
+      for (int[] lineSpaces : spaces) {
+         boolean fullLine = true;
+
+         // The spaces after the last character are ok.
+         for (int i = 0; i < lineSpaces.length - 1; i++) {
+            if (lineSpaces[i] > 0) {
+               fullLine = false;
+               break;
+            }
+         }
+
+         if (fullLine) {
+            fullLines++;
+         }
+      }
+
+      return (double)fullLines / spaces.size();
+   }
+
+   /**
+    * How far from square the characters are (on average).
+    * Lower is better, 0 is perfectly square.
+    */
+   private static double squareness(List<List<int[]>> lines) {
+      double total = 0;
+      int count = 0;
+
+      for (List<int[]> line : lines) {
+         for (int[] bounds : line) {
+            double height = bounds[BOTTOM] - bounds[TOP] + 1;
+            double width = bounds[RIGHT] - bounds[LEFT] + 1;
+
+            total += Math.abs(Math.log(width / height));
+            count++;
+         }
+      }
+
+      return count == 0 ? 0 : total / count;
+   }
+}
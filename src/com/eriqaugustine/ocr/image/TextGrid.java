@@ -0,0 +1,450 @@
+package com.eriqaugustine.ocr.image;
+
+import com.eriqaugustine.ocr.utils.ImageUtils;
+import com.eriqaugustine.ocr.utils.MathUtils;
+
+import magick.MagickImage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An image of text that is broken up into a grid of character cells.
+ * The idea is that Japanese characters (whether horozontal or vertical) always
+ *  fit in constant sized boxes, so the rows and columns of the grid can be found
+ *  from the row and column projection profiles (how much ink is in each row/column).
+ *
+ * Everything is done on a single grey buffer (and a packed ink raster and summed-area
+ *  tables over it, see BinaryRaster and IntegralImage).
+ * The cells are just descriptors (bounds, tight bounds, and how much ink there is).
+ * No images are made unless they are asked for (getCellImage()).
+ */
+public class TextGrid extends TextLayout {
+   // Anything darker than this is ink when finding tight bounds (like ImageUtils.shrinkImage()).
+   public static final int INK_THRESHOLD = ImageUtils.DEFAULT_WHITE_THRESHOLD;
+
+   // Anything this dark or darker breaks up stripes (like Filters.bw()).
+   public static final int STRIPE_THRESHOLD = Filters.DEFAULT_BW_THRESHOLD;
+
+   private static final double STRIPE_VARIANCE = 0.35;
+
+   private static final int NO_BOUNDS = -1;
+
+   // The pixels that are darker than INK_THRESHOLD (for tight bounds).
+   private final BinaryRaster inkBits;
+
+   // Counts of the pixels in |inkBits|.
+   private final IntegralImage ink;
+
+   private final int numRows;
+   private final int numCols;
+
+   // [top, left, bottom, right] (inclusive, image coordinates) for each cell, row major.
+   private final int[] cellBounds;
+
+   // Same as |cellBounds|, but only around the ink in the cell.
+   // All NO_BOUNDS if there is no ink in the cell.
+   private final int[] tightBounds;
+
+   // The number of ink pixels in each cell, row major.
+   private final int[] occupancy;
+
+   private final boolean vertical;
+
+   /**
+    * Build a grid from an image.
+    * The image's pixels are pulled out once.
+    */
+   public static TextGrid fromImage(MagickImage image) throws Exception {
+      return new TextGrid(GrayRaster.fromImage(image));
+   }
+
+   /**
+    * |pixels| is a single channel (grey) image.
+    */
+   public TextGrid(byte[] pixels, int width) {
+      this(new GrayRaster(pixels, width));
+   }
+
+   /**
+    * The grid holds onto |raster| (for getCellPixels() and getCellImage()).
+    */
+   public TextGrid(GrayRaster raster) {
+      super(raster);
+
+      // Ink is strictly darker than INK_THRESHOLD, stripes include it.
+      inkBits = BinaryRaster.fromGray(raster, INK_THRESHOLD - 1);
+      ink = new IntegralImage(inkBits);
+      IntegralImage stripeInk = new IntegralImage(raster, STRIPE_THRESHOLD);
+
+      int[] inkBounds = inkBits.tightBounds();
+
+      if (inkBounds == null) {
+         numRows = 0;
+         numCols = 0;
+         cellBounds = new int[0];
+         tightBounds = new int[0];
+         occupancy = new int[0];
+         vertical = false;
+         return;
+      }
+
+      int minRow = inkBounds[0];
+      int minCol = inkBounds[1];
+      int maxRow = inkBounds[2];
+      int maxCol = inkBounds[3];
+
+      // The projection profiles inside of the ink's bounds.
+      int[] rowProfile = stripeInk.rowProfile(minRow, maxRow - minRow + 1,
+                                              minCol, maxCol - minCol + 1);
+      int[] colProfile = stripeInk.colProfile(minRow, maxRow - minRow + 1,
+                                              minCol, maxCol - minCol + 1);
+
+      // [[start, end], ...] relative to the ink's bounds.
+      List<int[]> rows = normalizeStripes(findStripes(rowProfile));
+      List<int[]> cols = normalizeStripes(findStripes(colProfile));
+
+      numRows = rows.size();
+      numCols = cols.size();
+      cellBounds = new int[numRows * numCols * 4];
+      tightBounds = new int[numRows * numCols * 4];
+      occupancy = new int[numRows * numCols];
+
+      for (int i = 0; i < numRows; i++) {
+         for (int j = 0; j < numCols; j++) {
+            int cell = i * numCols + j;
+
+            // Note that the stripe ends are the first blank line after the stripe,
+            //  that line is included in the cell (as long as it is in the ink's bounds).
+            cellBounds[cell * 4 + 0] = minRow + rows.get(i)[0];
+            cellBounds[cell * 4 + 1] = minCol + cols.get(j)[0];
+            cellBounds[cell * 4 + 2] = Math.min(maxRow, minRow + rows.get(i)[1]);
+            cellBounds[cell * 4 + 3] = Math.min(maxCol, minCol + cols.get(j)[1]);
+
+            fitCell(cell);
+         }
+      }
+
+      vertical = findDirection();
+   }
+
+   /**
+    * Find the tight bounds and occupancy of a cell.
+    */
+   private void fitCell(int cell) {
+      int top = cellBounds[cell * 4 + 0];
+      int left = cellBounds[cell * 4 + 1];
+      int numRows = cellBounds[cell * 4 + 2] - top + 1;
+      int numCols = cellBounds[cell * 4 + 3] - left + 1;
+
+      occupancy[cell] = ink.count(top, numRows, left, numCols);
+
+      int[] bounds = inkBits.tightBounds(top, numRows, left, numCols);
+      for (int i = 0; i < 4; i++) {
+         tightBounds[cell * 4 + i] = bounds == null ? NO_BOUNDS : bounds[i];
+      }
+   }
+
+   public boolean isVertical() {
+      return vertical;
+   }
+
+   /**
+    * LTR goes row by row, vertical goes column by column (right to left).
+    * Empty cells are spaces, and there is a space after each line.
+    */
+   public void visitCharacters(CharacterCell.Visitor visitor) throws Exception {
+      CharacterCell cell = new CharacterCell(raster);
+
+      int numLines = vertical ? numCols : numRows;
+      int lineLength = vertical ? numRows : numCols;
+
+      for (int line = 0; line < numLines; line++) {
+         for (int i = 0; i < lineLength; i++) {
+            // Remember: Vertical is RTL.
+            int row = vertical ? i : line;
+            int col = vertical ? numCols - 1 - line : i;
+
+            int base = (row * numCols + col) * 4;
+            if (occupancy[row * numCols + col] == 0) {
+               cell.setSpace();
+            } else {
+               cell.set(tightBounds[base + 0], tightBounds[base + 1],
+                        tightBounds[base + 2], tightBounds[base + 3]);
+            }
+
+            visitor.visit(cell);
+         }
+
+         // Add in a space.
+         cell.setSpace();
+         visitor.visit(cell);
+      }
+   }
+
+   /**
+    * Find the reading direction of the grid (true for vertical).
+    * The idea behind this is simple: go down each reading direction (LTR and DOWN),
+    * the direction with the least breaks (spaces) is the reading direction.
+    * Trailing spaces are ok.
+    * If there are no breaks (spaces), then pick the direction with the longest line
+    * (row for LTR, column for DOWN).
+    * LTR's baseline is the left column.
+    * DOWN's baseline is the top row.
+    * Only the occupancy is looked at, no images are needed.
+    */
+   private boolean findDirection() {
+      if (numRows == 0) {
+         return false;
+      }
+
+      // LTR
+      int fullLTRLines = getFullLines(false);
+
+      // DOWN
+      int fullDownLines = getFullLines(true);
+
+      if (MathUtils.doubleEquals((double)fullLTRLines / numRows,
+                                 (double)fullDownLines / numCols)) {
+         // Go with whichever direction has the longest line.
+         // No need to check all the lines, just the overall size.
+         return numRows > numCols;
+      }
+
+      return (double)fullDownLines / numCols > (double)fullLTRLines / numRows;
+   }
+
+   /**
+    * Count the lines (rows for LTR, columns for DOWN) that start with a character
+    *  and do not have a character after a space.
+    */
+   private int getFullLines(boolean down) {
+      int numLines = down ? numCols : numRows;
+      int lineLength = down ? numRows : numCols;
+
+      int fullLines = 0;
+      for (int line = 0; line < numLines; line++) {
+         if (lineLength == 0 || isEmpty(down ? 0 : line, down ? line : 0)) {
+            continue;
+         }
+
+         boolean fullLine = true;
+         boolean seenSpace = false;
+         for (int i = 0; i < lineLength; i++) {
+            if (isEmpty(down ? i : line, down ? line : i)) {
+               seenSpace = true;
+            } else {
+               // A non-empty character after a break.
+               if (seenSpace) {
+                  fullLine = false;
+                  break;
+               }
+            }
+         }
+
+         if (fullLine) {
+            fullLines++;
+         }
+      }
+
+      return fullLines;
+   }
+
+   public int getNumRows() {
+      return numRows;
+   }
+
+   public int getNumCols() {
+      return numCols;
+   }
+
+   /**
+    * Get the bounds of a cell: [top, left, bottom, right] (inclusive, image coordinates).
+    */
+   public int[] getCellBounds(int row, int col) {
+      return getBounds(cellBounds, row, col);
+   }
+
+   /**
+    * Get the bounds of the ink in a cell: [top, left, bottom, right].
+    * Returns null if the cell is empty.
+    */
+   public int[] getTightBounds(int row, int col) {
+      if (isEmpty(row, col)) {
+         return null;
+      }
+
+      return getBounds(tightBounds, row, col);
+   }
+
+   /**
+    * Get the number of ink pixels in a cell.
+    */
+   public int getOccupancy(int row, int col) {
+      return occupancy[row * numCols + col];
+   }
+
+   /**
+    * An empty cell is a space.
+    */
+   public boolean isEmpty(int row, int col) {
+      return occupancy[row * numCols + col] == 0;
+   }
+
+   /**
+    * Copy out the (grey) pixels inside of a cell's tight bounds.
+    * Returns null if the cell is empty.
+    */
+   public byte[] getCellPixels(int row, int col) {
+      int[] bounds = getTightBounds(row, col);
+      if (bounds == null) {
+         return null;
+      }
+
+      byte[] rtn = new byte[(bounds[3] - bounds[1] + 1) * (bounds[2] - bounds[0] + 1)];
+      raster.view(bounds).copyTo(rtn);
+
+      return rtn;
+   }
+
+   /**
+    * Make an image out of a cell (cropped to the cell's ink).
+    * Empty cells get ImageUtils.emptyImage().
+    */
+   public MagickImage getCellImage(int row, int col) throws Exception {
+      if (isEmpty(row, col)) {
+         return ImageUtils.emptyImage();
+      }
+
+      return raster.view(getTightBounds(row, col)).toImage();
+   }
+
+   /**
+    * Make images for all the cells.
+    */
+   public MagickImage[][] getCellImages() throws Exception {
+      MagickImage[][] images = new MagickImage[numRows][numCols];
+
+      for (int row = 0; row < numRows; row++) {
+         for (int col = 0; col < numCols; col++) {
+            images[row][col] = getCellImage(row, col);
+         }
+      }
+
+      return images;
+   }
+
+   private int[] getBounds(int[] allBounds, int row, int col) {
+      int base = (row * numCols + col) * 4;
+      return new int[]{allBounds[base + 0], allBounds[base + 1],
+                       allBounds[base + 2], allBounds[base + 3]};
+   }
+
+   private static List<int[]> normalizeStripes(List<int[]> stripes) {
+      // Note(eriq): Widening the stripes hurt the first and last line too much.
+      // stripes = widenStripes(stripes);
+
+      double[] widths = stripeWidths(stripes);
+      double average = MathUtils.median(widths);
+
+      List<int[]> newStripes = new ArrayList<int[]>();
+      int stripeStart = -1;
+
+      for (int i = 0; i < stripes.size(); i++) {
+         if (stripeStart == -1) {
+            double width = widths[i];
+
+            // Note: Don't abs because we don't care if the partition is bigger.
+            if ((average - width) / average <= STRIPE_VARIANCE) {
+               newStripes.add(stripes.get(i));
+            } else {
+               stripeStart = i;
+            }
+         } else {
+            double width = stripes.get(i)[1] - stripes.get(stripeStart)[0];
+
+            if ((average - width) / average <= STRIPE_VARIANCE) {
+               newStripes.add(new int[]{stripes.get(stripeStart)[0], stripes.get(i)[1]});
+               stripeStart = -1;
+            }
+         }
+      }
+
+      if (stripeStart != -1) {
+         newStripes.add(new int[]{stripes.get(stripeStart)[0],
+                                  stripes.get(stripes.size() - 1)[1]});
+      }
+
+      return newStripes;
+   }
+
+   /**
+    * Widen stripes so that they are all touching.
+    * This should consume some whitespace and make finding small ones easier.
+    */
+   private static List<int[]> widenStripes(List<int[]> stripes) {
+      List<int[]> wideStripes = new ArrayList<int[]>();
+
+      for (int i = 0; i < stripes.size(); i++) {
+         int start;
+         if (i == 0) {
+            start = stripes.get(i)[0];
+         } else {
+            start = (stripes.get(i)[0] + stripes.get(i - 1)[1]) / 2;
+         }
+
+         int end;
+         if (i == stripes.size() - 1) {
+            end = stripes.get(i)[1];
+         } else {
+            end = (stripes.get(i + 1)[0] + stripes.get(i)[1]) / 2;
+         }
+
+         wideStripes.add(new int[]{start, end});
+      }
+
+      return wideStripes;
+   }
+
+   // HACK(eriq): Using doubles and not ints because I am lazy and don't want to
+   // write multiple different math utils.
+   private static double[] stripeWidths(List<int[]> stripes) {
+      double[] widths = new double[stripes.size()];
+
+      for (int i = 0; i < stripes.size(); i++) {
+         widths[i] = stripes.get(i)[1] - stripes.get(i)[0];
+      }
+
+      return widths;
+   }
+
+   /**
+    * Find the stripes of content in a projection profile.
+    * A stripe is [start, end], where end is the first blank line after the stripe
+    *  (or the length of the profile).
+    */
+   private static List<int[]> findStripes(int[] profile) {
+      List<int[]> stripes = new ArrayList<int[]>();
+
+      // Note: The profile is already inside of the ink's bounds, so the first and last
+      // rows/cols MUST be boundaries.
+      int stripeStart = 0;
+
+      for (int i = 0; i < profile.length; i++) {
+         boolean hasContent = profile[i] > 0;
+
+         if (stripeStart == -1 && hasContent) {
+            stripeStart = i;
+         } else if (stripeStart != -1 && !hasContent) {
+            stripes.add(new int[]{stripeStart, i});
+            stripeStart = -1;
+         }
+      }
+
+      if (stripeStart != -1) {
+         stripes.add(new int[]{stripeStart, profile.length});
+      }
+
+      return stripes;
+   }
+}
@@ -0,0 +1,30 @@
+package com.eriqaugustine.ocr.image;
+
+/**
+ * Where the characters are in a single channel (grey) image of text,
+ *  and what order they are read in.
+ * A layout is just descriptors, no images are made until a visitor asks for one.
+ */
+public abstract class TextLayout {
+   protected final GrayRaster raster;
+
+   protected TextLayout(GrayRaster raster) {
+      this.raster = raster;
+   }
+
+   public GrayRaster getRaster() {
+      return raster;
+   }
+
+   /**
+    * True if the text reads down (and right to left), false if it reads left to right.
+    */
+   public abstract boolean isVertical();
+
+   /**
+    * Push every character into |visitor| in reading order.
+    * Spaces (including the break after each line) come through as space cells.
+    * A single cell is reused for every character.
+    */
+   public abstract void visitCharacters(CharacterCell.Visitor visitor) throws Exception;
+}
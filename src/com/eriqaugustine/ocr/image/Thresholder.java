@@ -0,0 +1,299 @@
+package com.eriqaugustine.ocr.image;
+
+import com.eriqaugustine.ocr.utils.BufferPool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which pixels of a grey image are black.
+ * Everything that used to take a single global threshold (Filters.bw*(),
+ *  BubbleDetection, the PDC densities) can take one of these instead.
+ *
+ * There are three kinds:
+ *  global() - The old behavior, black if the pixel is at most a fixed threshold.
+ *  localMean() - Black if the pixel is darker than the mean of the window around it.
+ *  sauvola() - Like localMean(), but the threshold also drops in flat (low contrast) areas,
+ *   so grey paper does not turn into noise.
+ *
+ * The local kinds use summed-area tables of the pixels and the squared pixels,
+ *  so the cost per pixel is the same no matter how big the window is.
+ * The thresholds are worked out in bands of rows in parallel.
+ *
+ * A pixel is black if it is at most its threshold (the same as Filters.bwPixels()).
+ */
+public abstract class Thresholder {
+   public static final int DEFAULT_WINDOW_RADIUS = 15;
+   public static final double DEFAULT_SAUVOLA_K = 0.34;
+
+   // The dynamic range of the standard deviation (for grey bytes).
+   private static final double SAUVOLA_R = 128.0;
+
+   // Window sums are kept in ints and are allowed to wrap around (see LocalThresholder).
+   // That is only exact while the squared sum of a window fits in an int.
+   public static final int MAX_WINDOW_RADIUS = 90;
+
+   // Bands smaller than this are not worth handing to another thread.
+   private static final int MIN_BAND_ROWS = 64;
+
+   private static final int NUM_BAND_WORKERS = Runtime.getRuntime().availableProcessors();
+
+   private static final ExecutorService bandWorkers =
+         Executors.newFixedThreadPool(NUM_BAND_WORKERS, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            public Thread newThread(Runnable runnable) {
+               Thread thread = new Thread(runnable,
+                                          "Thresholder-band-" + count.getAndIncrement());
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+
+   public static Thresholder global(int threshold) {
+      return new GlobalThresholder(threshold);
+   }
+
+   /**
+    * Black if the pixel is at least |offset| darker than the mean of the
+    *  (2 * |radius| + 1) square window around it.
+    */
+   public static Thresholder localMean(int radius, int offset) {
+      return new LocalThresholder(radius, false, offset);
+   }
+
+   /**
+    * Sauvola: threshold = mean * (1 + |k| * (stddev / R - 1)).
+    */
+   public static Thresholder sauvola(int radius, double k) {
+      return new LocalThresholder(radius, true, k);
+   }
+
+   public static Thresholder sauvola() {
+      return sauvola(DEFAULT_WINDOW_RADIUS, DEFAULT_SAUVOLA_K);
+   }
+
+   /**
+    * Get the threshold for each pixel of |gray|.
+    * |out| is row major with |gray.width| per row (it can be bigger than needed).
+    */
+   public abstract void thresholds(GrayRaster gray, byte[] out);
+
+   /**
+    * If every pixel gets the same threshold, then that threshold. Otherwise -1.
+    * This lets the fused filters skip building a threshold for every pixel.
+    */
+   public int getGlobalThreshold() {
+      return -1;
+   }
+
+   public BinaryRaster threshold(GrayRaster gray) {
+      BufferPool pool = BufferPool.shared();
+      byte[] thresholds = pool.leaseBytes(gray.length());
+
+      try {
+         thresholds(gray, thresholds);
+
+         BinaryRaster rtn = new BinaryRaster(gray.width, gray.height);
+         for (int row = 0; row < gray.height; row++) {
+            int base = gray.index(row, 0);
+            int thresholdBase = row * gray.width;
+
+            for (int col = 0; col < gray.width; col++) {
+               if ((0xFF & gray.pixels[base + col]) <= (0xFF & thresholds[thresholdBase + col])) {
+                  rtn.set(row, col, true);
+               }
+            }
+         }
+
+         return rtn;
+      } finally {
+         pool.release(thresholds);
+      }
+   }
+
+   private static class GlobalThresholder extends Thresholder {
+      private final int threshold;
+
+      public GlobalThresholder(int threshold) {
+         this.threshold = threshold;
+      }
+
+      public void thresholds(GrayRaster gray, byte[] out) {
+         Arrays.fill(out, 0, gray.length(), (byte)threshold);
+      }
+
+      public int getGlobalThreshold() {
+         return threshold;
+      }
+
+      public BinaryRaster threshold(GrayRaster gray) {
+         return BinaryRaster.fromGray(gray, threshold);
+      }
+
+      public String toString() {
+         return "global(" + threshold + ")";
+      }
+   }
+
+   /**
+    * Local mean and Sauvola.
+    * The summed-area tables are ints. Even though the sums for a whole page overflow,
+    *  int math wraps around, so the four lookup difference for a window is still exact
+    *  as long as the window's own sum fits (which MAX_WINDOW_RADIUS makes sure of).
+    */
+   private static class LocalThresholder extends Thresholder {
+      private final int radius;
+      private final boolean sauvola;
+      private final double param;
+
+      public LocalThresholder(int radius, boolean sauvola, double param) {
+         assert(radius > 0 && radius <= MAX_WINDOW_RADIUS);
+
+         this.radius = radius;
+         this.sauvola = sauvola;
+         this.param = param;
+      }
+
+      public void thresholds(final GrayRaster gray, final byte[] out) {
+         assert(out.length >= gray.length());
+
+         final int width = gray.width;
+         final int height = gray.height;
+         final int stride = width + 1;
+
+         // (|width| + 1) x (|height| + 1), the first row and column are zero.
+         // These are as big as the page (or bigger), so they come from the pool too.
+         BufferPool pool = BufferPool.shared();
+         final int[] sums = pool.leaseInts(stride * (height + 1));
+         final int[] squares = sauvola ? pool.leaseInts(sums.length) : null;
+
+         // The bands may still be reading the tables if one of them fails,
+         //  so they only go back to the pool once every band is done.
+         boolean done = false;
+
+         try {
+            Arrays.fill(sums, 0, stride, 0);
+            if (sauvola) {
+               Arrays.fill(squares, 0, stride, 0);
+            }
+
+            for (int row = 0; row < height; row++) {
+               int base = gray.index(row, 0);
+               int sumBase = (row + 1) * stride;
+               int rowSum = 0;
+               int rowSquares = 0;
+
+               sums[sumBase] = 0;
+               if (sauvola) {
+                  squares[sumBase] = 0;
+               }
+
+               for (int col = 0; col < width; col++) {
+                  int value = 0xFF & gray.pixels[base + col];
+                  rowSum += value;
+                  sums[sumBase + col + 1] = sums[sumBase - stride + col + 1] + rowSum;
+
+                  if (sauvola) {
+                     rowSquares += value * value;
+                     squares[sumBase + col + 1] =
+                           squares[sumBase - stride + col + 1] + rowSquares;
+                  }
+               }
+            }
+
+            int numBands = Math.max(1, Math.min(NUM_BAND_WORKERS, height / MIN_BAND_ROWS));
+            if (numBands == 1) {
+               thresholdRows(width, height, sums, squares, 0, height, out);
+               done = true;
+               return;
+            }
+
+            int bandRows = (height + numBands - 1) / numBands;
+            List<Future<?>> bands = new ArrayList<Future<?>>();
+
+            for (int start = 0; start < height; start += bandRows) {
+               final int bandStart = start;
+               final int bandEnd = Math.min(height, start + bandRows);
+
+               bands.add(bandWorkers.submit(new Runnable() {
+                  public void run() {
+                     thresholdRows(width, height, sums, squares, bandStart, bandEnd, out);
+                  }
+               }));
+            }
+
+            try {
+               for (Future<?> band : bands) {
+                  band.get();
+               }
+               done = true;
+            } catch (Exception ex) {
+               for (Future<?> band : bands) {
+                  band.cancel(true);
+               }
+
+               throw new RuntimeException("Thresholding failed.", ex);
+            }
+         } finally {
+            if (done) {
+               pool.release(sums);
+               pool.release(squares);
+            }
+         }
+      }
+
+      /**
+       * Threshold [|startRow|, |endRow|).
+       * Windows are clipped to the image.
+       */
+      private void thresholdRows(int width, int height, int[] sums, int[] squares,
+                                 int startRow, int endRow, byte[] out) {
+         int stride = width + 1;
+
+         for (int row = startRow; row < endRow; row++) {
+            int top = Math.max(0, row - radius) * stride;
+            int bottom = Math.min(height, row + radius + 1) * stride;
+            int numRows = (bottom - top) / stride;
+
+            for (int col = 0; col < width; col++) {
+               int left = Math.max(0, col - radius);
+               int right = Math.min(width, col + radius + 1);
+               int area = numRows * (right - left);
+
+               int sum = sums[bottom + right] - sums[bottom + left] -
+                         sums[top + right] + sums[top + left];
+               double mean = (double)sum / area;
+
+               double threshold;
+               if (sauvola) {
+                  int squareSum = squares[bottom + right] - squares[bottom + left] -
+                                  squares[top + right] + squares[top + left];
+                  double variance = Math.max(0, (double)squareSum / area - mean * mean);
+
+                  threshold = mean * (1 + param * (Math.sqrt(variance) / SAUVOLA_R - 1));
+               } else {
+                  threshold = mean - param;
+               }
+
+               // Black is at most the threshold, so round down.
+               out[row * width + col] = (byte)Math.max(0, Math.min(0xFF, (int)threshold));
+            }
+         }
+      }
+
+      public String toString() {
+         if (sauvola) {
+            return "sauvola(" + radius + ", " + param + ")";
+         }
+
+         return "localMean(" + radius + ", " + (int)param + ")";
+      }
+   }
+}
@@ -24,4 +24,20 @@ public class BinaryConfusionMatrix extends GeneralConfusionMatrix {
    public void falseNegative() {
       add(1, 0);
    }
+
+   public int numTruePositives() {
+      return get(0, 0);
+   }
+
+   public int numTrueNegatives() {
+      return get(1, 1);
+   }
+
+   public int numFalsePositives() {
+      return get(0, 1);
+   }
+
+   public int numFalseNegatives() {
+      return get(1, 0);
+   }
 }
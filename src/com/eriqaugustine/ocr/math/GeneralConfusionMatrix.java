@@ -37,6 +37,17 @@ public class GeneralConfusionMatrix {
       count++;
    }
 
+   /**
+    * Get how many times |actualIndex| was predicted as |predictedIndex|.
+    */
+   public int get(int predictedIndex, int actualIndex) {
+      return matrix[actualIndex][predictedIndex];
+   }
+
+   public int getCount() {
+      return count;
+   }
+
    /**
     * Always safe to use.
     */
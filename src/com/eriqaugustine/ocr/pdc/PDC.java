@@ -1,12 +1,13 @@
 package com.eriqaugustine.ocr.pdc;
 
 import com.eriqaugustine.ocr.image.Filters;
-import com.eriqaugustine.ocr.utils.ImageUtils;
+import com.eriqaugustine.ocr.image.GrayRaster;
 import com.eriqaugustine.ocr.utils.ListUtils;
 import com.eriqaugustine.ocr.utils.MathUtils;
 
 import magick.MagickImage;
 
+import java.awt.Dimension;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -63,8 +64,28 @@ public final class PDC {
     * |image| must be already be binary.
     */
    public static PDCInfo pdc(MagickImage baseImage) throws Exception {
-      MagickImage scaleImage = ImageUtils.scaleImage(baseImage, SCALE_SIZE, SCALE_SIZE);
-      boolean[] discretePixels = Filters.discretizePixels(scaleImage);
+      return pdc(GrayRaster.fromImage(baseImage));
+   }
+
+   /**
+    * Same as above, but all in Java (no JMagick).
+    * |baseRaster| is usually a view of the character's tight bounds
+    *  (eg. CharacterCell.getRaster()), it goes straight to the SCALE_SIZE grid
+    *  (see Filters.scaleToDiscrete()).
+    */
+   public static PDCInfo pdc(GrayRaster baseRaster) {
+      return pdc(baseRaster, new boolean[SCALE_SIZE * SCALE_SIZE]);
+   }
+
+   /**
+    * Same as above, but the grid goes in |discretePixels|.
+    * Nothing keeps the grid, so the same one can be used for a whole batch of characters.
+    */
+   public static PDCInfo pdc(GrayRaster baseRaster, boolean[] discretePixels) {
+      assert(discretePixels.length == SCALE_SIZE * SCALE_SIZE);
+
+      Filters.scaleToDiscrete(baseRaster, SCALE_SIZE, SCALE_SIZE,
+                              Filters.DEFAULT_BW_THRESHOLD, discretePixels);
 
       List<Integer> peripherals = new ArrayList<Integer>(SCALE_SIZE *
                                                          NUM_CARDINAL_SCAN_DIRECTIONS *
@@ -120,7 +141,8 @@ public final class PDC {
          }
       }
 
-      return new PDCInfo(baseImage, scaleImage,
+      return new PDCInfo(new Dimension(baseRaster.width, baseRaster.height),
+                         new Dimension(SCALE_SIZE, SCALE_SIZE),
                          NUM_LAYERS,
                          lengths, ListUtils.toIntArray(peripherals));
    }
@@ -133,6 +155,16 @@ public final class PDC {
       return rtn;
    }
 
+   public static PDCInfo[] pdc(GrayRaster[] rasters) {
+      boolean[] discretePixels = new boolean[SCALE_SIZE * SCALE_SIZE];
+
+      PDCInfo[] rtn = new PDCInfo[rasters.length];
+      for (int i = 0; i < rasters.length; i++) {
+         rtn[i] = pdc(rasters[i], discretePixels);
+      }
+      return rtn;
+   }
+
    /**
     * Get the lengths that are the core components in the DC.
     */
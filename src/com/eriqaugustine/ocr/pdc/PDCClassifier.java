@@ -1,5 +1,9 @@
 package com.eriqaugustine.ocr.pdc;
 
+import com.eriqaugustine.ocr.image.CharacterCell;
+import com.eriqaugustine.ocr.image.GrayRaster;
+import com.eriqaugustine.ocr.image.IntegralImage;
+import com.eriqaugustine.ocr.image.Thresholder;
 import com.eriqaugustine.ocr.utils.ImageUtils;
 import com.eriqaugustine.ocr.utils.StringUtils;
 
@@ -30,6 +34,9 @@ public class PDCClassifier {
    private static final int DEFAULT_GROUP_SIZE = 1;
    private static final boolean DEFAULT_COMBINE_DIRECTIONS = false;
    private static final int DEFUALT_REGIONS_PER_SIDE = 5;
+   private static final int DENSITY_THRESHOLD = 128;
+   public static final Thresholder DEFAULT_DENSITY_THRESHOLDER =
+         Thresholder.global(DENSITY_THRESHOLD);
 
    private Classifier classifier;
    // WEKA wants FastVector over List, but it will be contained to this class only.
@@ -38,6 +45,7 @@ public class PDCClassifier {
    private final int numDCs;
    private final int groupSize;
    private final boolean combineDirections;
+   private final Thresholder densityThresholder;
 
    private FastVector featureAttributes;
 
@@ -62,12 +70,44 @@ public class PDCClassifier {
            combineDirections, groupSize);
    }
 
-   // Suppress the classifier Class cast.
-   @SuppressWarnings("unchecked")
    public PDCClassifier(MagickImage[] trainingImages,
                         String[] trainingCharacters,
                         boolean combineDirections,
                         int groupSize) throws Exception {
+      this(trainingImages, trainingCharacters, combineDirections, groupSize,
+           DEFAULT_DENSITY_THRESHOLDER);
+   }
+
+   /**
+    * |densityThresholder| decides which pixels are black for the region density features.
+    */
+   public PDCClassifier(MagickImage[] trainingImages,
+                        String[] trainingCharacters,
+                        boolean combineDirections,
+                        int groupSize,
+                        Thresholder densityThresholder) throws Exception {
+      this(toRasters(trainingImages), trainingCharacters, combineDirections, groupSize,
+           densityThresholder);
+   }
+
+   public PDCClassifier(GrayRaster[] trainingImages,
+                        String[] trainingCharacters) throws Exception {
+      this(trainingImages, trainingCharacters, DEFAULT_COMBINE_DIRECTIONS, DEFAULT_GROUP_SIZE,
+           DEFAULT_DENSITY_THRESHOLDER);
+   }
+
+   /**
+    * Train on rasters, JMagick is never touched.
+    * All the features are made from rasters (images are converted first),
+    *  so training and classifying always see the same features.
+    */
+   // Suppress the classifier Class cast.
+   @SuppressWarnings("unchecked")
+   public PDCClassifier(GrayRaster[] trainingImages,
+                        String[] trainingCharacters,
+                        boolean combineDirections,
+                        int groupSize,
+                        Thresholder densityThresholder) throws Exception {
       assert(trainingImages.length > 0);
       assert(groupSize > 0);
       assert(PDC.getNumDCs() % groupSize == 0);
@@ -75,6 +115,7 @@ public class PDCClassifier {
       numDCs = PDC.getNumDCs();
       this.combineDirections = combineDirections;
       this.groupSize = groupSize;
+      this.densityThresholder = densityThresholder;
 
       Set<String> seenCharacters = new HashSet<String>();
       for (String seenCharacter : trainingCharacters) {
@@ -95,6 +136,12 @@ public class PDCClassifier {
       Map<String, String> attributes = new HashMap<String, String>();
       attributes.put("combine_directions", "" + this.combineDirections);
       attributes.put("group_size", "" + this.groupSize);
+      // Classifiers cached before the features were made from rasters scaled a little differently.
+      attributes.put("features", "raster");
+      // Only mark non-default thresholders so that the existing cached classifiers still match.
+      if (!densityThresholder.toString().equals(DEFAULT_DENSITY_THRESHOLDER.toString())) {
+         attributes.put("density_thresholder", densityThresholder.toString());
+      }
 
       classifier = SerializedWekaClassifier.fetchClassifier(classifierClass, trainingSet,
                                                             true /* cache */,
@@ -112,9 +159,29 @@ public class PDCClassifier {
          return " ";
       }
 
+      return classify(GrayRaster.fromImage(image));
+   }
+
+   /**
+    * Classify a character without JMagick.
+    * Just like ImageUtils.isEmptyImage(), a single column is a space.
+    */
+   public String classify(GrayRaster raster) {
+      if (raster.width == 1) {
+         return " ";
+      }
+
       try {
-         Instance instance = prepUnclassed(image);
-         int prediction = (int)classifier.classifyInstance(instance);
+         Instance instance = prepUnclassed(raster);
+
+         // WEKA classifiers keep state while classifying (eg. their filters),
+         //  so only one thread can be in there at a time.
+         // Making the features (the expensive part) can still happen in parallel.
+         int prediction;
+         synchronized (classifier) {
+            prediction = (int)classifier.classifyInstance(instance);
+         }
+
          return instance.classAttribute().value(prediction);
       } catch (Exception ex) {
          logger.error("Classification error.", ex);
@@ -122,7 +189,19 @@ public class PDCClassifier {
       }
    }
 
-   private Instance prepUnclassed(MagickImage image) throws Exception {
+   /**
+    * Classify a character straight out of segmentation.
+    * Characters never become images, the features are made right from a view of the cell.
+    */
+   public String classify(CharacterCell cell) throws Exception {
+      if (cell.isSpace()) {
+         return " ";
+      }
+
+      return classify(cell.getRaster());
+   }
+
+   private Instance prepUnclassed(GrayRaster image) throws Exception {
       PDCInfo info = PDC.pdc(image);
 
       assert(info.numPoints() == numDCs);
@@ -152,9 +231,8 @@ public class PDCClassifier {
       }
 
       // Add the character densities.
-      double[] characterDensities = ImageUtils.regionDensities(image,
-                                                               128,
-                                                               DEFUALT_REGIONS_PER_SIDE);
+      double[] characterDensities = new IntegralImage(densityThresholder.threshold(image))
+            .regionDensities(DEFUALT_REGIONS_PER_SIDE);
       for (int i = 0; i < characterDensities.length; i++) {
          instance.setValue(1 + dcFeatures.length, characterDensities[i]);
       }
@@ -164,7 +242,7 @@ public class PDCClassifier {
       return instances.instance(0);
    }
 
-   private Instances prepTraining(MagickImage[] trainingImages,
+   private Instances prepTraining(GrayRaster[] trainingImages,
                                   String[] trainingCharacters) throws Exception {
       Instances trainingSet = new Instances("PDCInstances",
                                             featureAttributes,
@@ -182,6 +260,14 @@ public class PDCClassifier {
       return trainingSet;
    }
 
+   private static GrayRaster[] toRasters(MagickImage[] images) throws Exception {
+      GrayRaster[] rasters = new GrayRaster[images.length];
+      for (int i = 0; i < images.length; i++) {
+         rasters[i] = GrayRaster.fromImage(images[i]);
+      }
+      return rasters;
+   }
+
    private FastVector getFeatureAttributes(FastVector possibleClasses) {
       FastVector features =
             new FastVector(1 + (numDCs / groupSize) * PDC.PDC_DIRECTION_DELTAS.length);
@@ -12,16 +12,13 @@ import java.util.List;
  * Contains all the information necessary after a PDC analysis of an image.
  */
 public class PDCInfo {
-   private final MagickImage baseImage;
-   private final MagickImage scaleImage;
-
    private final int numLayers;
 
    private final int[][] lengths;
    private final int[] peripherals;
 
-   private Dimension baseDimensions;
-   private Dimension scaleDimensions;
+   private final Dimension baseDimensions;
+   private final Dimension scaleDimensions;
 
    private DCFeature[] fullPDCs;
    private DCFeature[] halfPDCs;
@@ -34,16 +31,23 @@ public class PDCInfo {
    public PDCInfo(MagickImage baseImage, MagickImage scaleImage,
                   int numLayers,
                   int[][] lengths, int[] peripherals) throws Exception {
-      this.baseImage = baseImage;
-      this.scaleImage = scaleImage;
+      this(baseImage.getDimension(), scaleImage.getDimension(),
+           numLayers, lengths, peripherals);
+   }
+
+   /**
+    * Only the sizes of the images are needed, so the images themselves
+    *  (and JMagick) do not need to be around.
+    */
+   public PDCInfo(Dimension baseDimensions, Dimension scaleDimensions,
+                  int numLayers,
+                  int[][] lengths, int[] peripherals) {
+      this.baseDimensions = baseDimensions;
+      this.scaleDimensions = scaleDimensions;
       this.numLayers = numLayers;
       this.lengths = lengths;
       this.peripherals = peripherals;
 
-      // Get these early so we can avoid exceptions later.
-      baseDimensions = baseImage.getDimension();
-      scaleDimensions = scaleImage.getDimension();
-
       fullPDCs = null;
       halfPDCs = null;
    }
@@ -0,0 +1,237 @@
+package com.eriqaugustine.ocr.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of pixel buffers, so every page (and glyph) does not allocate new ones.
+ * Page sized arrays are humongous allocations for G1, and allocating a few of them for
+ *  every page fragments the heap and ends in full GCs.
+ *
+ * Buffers are pooled by their exact size. A lot of the image code works out the size of
+ *  an image from the size of its buffer, so a bigger buffer is not good enough.
+ * Since the pages of a volume are (almost always) all the same size, this works well
+ *  for pages. Glyphs vary a lot more, so they get their own (smaller) limit.
+ *
+ * Buffers come on the heap (leaseBytes(), or leaseInts() for tables like summed-area tables)
+ *  or off of it (leaseDirect()).
+ * Direct buffers are for things that go straight to channels (eg. RasterCache)
+ *  and would otherwise be copied into a temporary direct buffer by the JDK.
+ *
+ * Int buffers count against the limits by their size in bytes.
+ *
+ * Leased buffers are NOT cleared, they still have whatever the last user left in them.
+ * Give a buffer back exactly once, and do not touch it after it has been given back.
+ */
+public class BufferPool {
+   /**
+    * Each size class keeps its own limit and metrics.
+    */
+   public static enum SizeClass {
+      // Characters and other small images.
+      GLYPH,
+      // Pages and bands of pages.
+      PAGE
+   }
+
+   // Anything this big or bigger is a page.
+   public static final int PAGE_THRESHOLD = 256 * 1024;
+
+   public static final long DEFAULT_MAX_GLYPH_BYTES = 16L * 1024 * 1024;
+   public static final long DEFAULT_MAX_PAGE_BYTES = 256L * 1024 * 1024;
+
+   private static final BufferPool sharedPool =
+         new BufferPool(DEFAULT_MAX_GLYPH_BYTES, DEFAULT_MAX_PAGE_BYTES);
+
+   // Indexed by size class ordinal.
+   private final long[] maxRetainedBytes;
+   private final long[] retainedBytes;
+
+   // {size: free buffers}
+   private final Map<Integer, ArrayDeque<byte[]>> freeBytes;
+   private final Map<Integer, ArrayDeque<int[]>> freeInts;
+   private final Map<Integer, ArrayDeque<ByteBuffer>> freeDirect;
+
+   // Indexed by size class ordinal.
+   private final AtomicLong[] hits;
+   private final AtomicLong[] misses;
+   private final AtomicLong[] drops;
+
+   /**
+    * The pool that everything shares.
+    */
+   public static BufferPool shared() {
+      return sharedPool;
+   }
+
+   public BufferPool(long maxGlyphBytes, long maxPageBytes) {
+      int numClasses = SizeClass.values().length;
+
+      maxRetainedBytes = new long[numClasses];
+      maxRetainedBytes[SizeClass.GLYPH.ordinal()] = maxGlyphBytes;
+      maxRetainedBytes[SizeClass.PAGE.ordinal()] = maxPageBytes;
+      retainedBytes = new long[numClasses];
+
+      freeBytes = new HashMap<Integer, ArrayDeque<byte[]>>();
+      freeInts = new HashMap<Integer, ArrayDeque<int[]>>();
+      freeDirect = new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+
+      hits = new AtomicLong[numClasses];
+      misses = new AtomicLong[numClasses];
+      drops = new AtomicLong[numClasses];
+      for (int i = 0; i < numClasses; i++) {
+         hits[i] = new AtomicLong(0);
+         misses[i] = new AtomicLong(0);
+         drops[i] = new AtomicLong(0);
+      }
+   }
+
+   public static SizeClass sizeClass(int size) {
+      return size >= PAGE_THRESHOLD ? SizeClass.PAGE : SizeClass.GLYPH;
+   }
+
+   /**
+    * Get a heap buffer of exactly |size| bytes.
+    */
+   public byte[] leaseBytes(int size) {
+      byte[] buffer = take(freeBytes, size, size);
+      return buffer != null ? buffer : new byte[size];
+   }
+
+   public void release(byte[] buffer) {
+      if (buffer != null) {
+         give(freeBytes, buffer.length, buffer.length, buffer);
+      }
+   }
+
+   /**
+    * Get a heap buffer of exactly |length| ints.
+    */
+   public int[] leaseInts(int length) {
+      int[] buffer = take(freeInts, length, intBytes(length));
+      return buffer != null ? buffer : new int[length];
+   }
+
+   public void release(int[] buffer) {
+      if (buffer != null) {
+         give(freeInts, buffer.length, intBytes(buffer.length), buffer);
+      }
+   }
+
+   /**
+    * Get a direct (off heap) buffer with a capacity of exactly |size| bytes.
+    * The buffer is cleared (position 0, limit |size|), but its contents are not.
+    */
+   public ByteBuffer leaseDirect(int size) {
+      ByteBuffer buffer = take(freeDirect, size, size);
+      if (buffer == null) {
+         return ByteBuffer.allocateDirect(size);
+      }
+
+      buffer.clear();
+      return buffer;
+   }
+
+   public void release(ByteBuffer buffer) {
+      if (buffer != null) {
+         assert(buffer.isDirect());
+         give(freeDirect, buffer.capacity(), buffer.capacity(), buffer);
+      }
+   }
+
+   public long getHits(SizeClass sizeClass) {
+      return hits[sizeClass.ordinal()].get();
+   }
+
+   public long getMisses(SizeClass sizeClass) {
+      return misses[sizeClass.ordinal()].get();
+   }
+
+   /**
+    * The number of buffers that were given back but not kept (because of the limit).
+    */
+   public long getDrops(SizeClass sizeClass) {
+      return drops[sizeClass.ordinal()].get();
+   }
+
+   /**
+    * How many bytes are sitting in the pool (heap, ints, and direct).
+    */
+   public synchronized long getRetainedBytes(SizeClass sizeClass) {
+      return retainedBytes[sizeClass.ordinal()];
+   }
+
+   /**
+    * Let go of everything in the pool (the metrics are kept).
+    */
+   public synchronized void clear() {
+      freeBytes.clear();
+      freeInts.clear();
+      freeDirect.clear();
+
+      for (int i = 0; i < retainedBytes.length; i++) {
+         retainedBytes[i] = 0;
+      }
+   }
+
+   public String toString() {
+      StringBuilder builder = new StringBuilder("BufferPool {");
+
+      for (SizeClass sizeClass : SizeClass.values()) {
+         builder.append(String.format(" %s: {hits: %d, misses: %d, drops: %d, retained: %d}",
+                                      sizeClass,
+                                      getHits(sizeClass), getMisses(sizeClass),
+                                      getDrops(sizeClass), getRetainedBytes(sizeClass)));
+      }
+
+      return builder.append(" }").toString();
+   }
+
+   /**
+    * How many bytes |length| ints take up.
+    */
+   private static int intBytes(int length) {
+      return (int)Math.min(Integer.MAX_VALUE, 4L * length);
+   }
+
+   /**
+    * Buffers are found by their |length| (in elements),
+    *  but they are counted (and classed) by their |bytes|.
+    */
+   private synchronized <T> T take(Map<Integer, ArrayDeque<T>> free, int length, int bytes) {
+      int sizeClass = sizeClass(bytes).ordinal();
+
+      ArrayDeque<T> buffers = free.get(length);
+      if (buffers == null || buffers.isEmpty()) {
+         misses[sizeClass].incrementAndGet();
+         return null;
+      }
+
+      hits[sizeClass].incrementAndGet();
+      retainedBytes[sizeClass] -= bytes;
+
+      return buffers.pop();
+   }
+
+   private synchronized <T> void give(Map<Integer, ArrayDeque<T>> free,
+                                      int length, int bytes, T buffer) {
+      int sizeClass = sizeClass(bytes).ordinal();
+
+      if (retainedBytes[sizeClass] + bytes > maxRetainedBytes[sizeClass]) {
+         drops[sizeClass].incrementAndGet();
+         return;
+      }
+
+      ArrayDeque<T> buffers = free.get(length);
+      if (buffers == null) {
+         buffers = new ArrayDeque<T>();
+         free.put(length, buffers);
+      }
+
+      buffers.push(buffer);
+      retainedBytes[sizeClass] += bytes;
+   }
+}
@@ -1,11 +1,20 @@
 package com.eriqaugustine.ocr.utils;
 
+import com.eriqaugustine.ocr.image.GrayRaster;
+import com.eriqaugustine.ocr.image.RasterIO;
+
 import magick.DrawInfo;
 import magick.ImageInfo;
 import magick.MagickImage;
 import magick.PixelPacket;
 
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
 import java.awt.GraphicsEnvironment;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
 
 /**
  * Utilities for character-based operations.
@@ -53,6 +62,50 @@ public class CharacterUtils {
       return image;
    }
 
+   /**
+    * Same as generateCharacter(), but drawn with Java2D straight into a raster (no JMagick).
+    * The character is centered, just like the center gravity annotation.
+    */
+   public static GrayRaster generateCharacterRaster(char character,
+                                                    boolean shrink,
+                                                    int fontSize,
+                                                    String fontFamily) {
+      int sideLength = fontSize;
+
+      BufferedImage image = new BufferedImage(sideLength, sideLength,
+                                              BufferedImage.TYPE_BYTE_GRAY);
+      Graphics2D graphics = image.createGraphics();
+
+      graphics.setColor(Color.WHITE);
+      graphics.fillRect(0, 0, sideLength, sideLength);
+
+      graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                                RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+      graphics.setColor(Color.BLACK);
+      graphics.setFont(new Font(fontFamily, Font.PLAIN, fontSize));
+
+      String text = "" + character;
+      FontMetrics metrics = graphics.getFontMetrics();
+      graphics.drawString(text,
+                          (sideLength - metrics.stringWidth(text)) / 2,
+                          (sideLength - metrics.getHeight()) / 2 + metrics.getAscent());
+      graphics.dispose();
+
+      GrayRaster raster = RasterIO.toGray(image);
+
+      if (shrink) {
+         return ImageUtils.shrinkRaster(raster);
+      }
+
+      return raster;
+   }
+
+   public static GrayRaster generateCharacterRaster(char character,
+                                                    boolean shrink,
+                                                    String fontFamily) {
+      return generateCharacterRaster(character, shrink, DEFAULT_FONT_SIZE, fontFamily);
+   }
+
    public static MagickImage generateCharacter(char character,
                                                boolean shrink,
                                                String fontFamily) throws Exception {
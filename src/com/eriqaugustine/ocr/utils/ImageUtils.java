@@ -1,6 +1,10 @@
 package com.eriqaugustine.ocr.utils;
 
+import com.eriqaugustine.ocr.image.BinaryRaster;
 import com.eriqaugustine.ocr.image.Filters;
+import com.eriqaugustine.ocr.image.GrayRaster;
+import com.eriqaugustine.ocr.image.IntegralImage;
+import com.eriqaugustine.ocr.image.Thresholder;
 
 import magick.DrawInfo;
 import magick.ImageInfo;
@@ -134,6 +138,24 @@ public class ImageUtils {
       return image.getDimension().width == 1;
    }
 
+   /**
+    * Make an image out of a region of single channel (grey) pixels.
+    * |bounds| is [top, left, bottom, right] (inclusive).
+    */
+   public static MagickImage grayImage(byte[] pixels, int imageWidth,
+                                       int[] bounds) throws Exception {
+      return new GrayRaster(pixels, imageWidth).view(bounds).toImage();
+   }
+
+   /**
+    * Same as grayImage(), but the RGB pixels are built in |rgbPixels|
+    *  (which can be bigger than needed, so it can be reused).
+    */
+   public static MagickImage grayImage(byte[] pixels, int imageWidth,
+                                       int[] bounds, byte[] rgbPixels) throws Exception {
+      return new GrayRaster(pixels, imageWidth).view(bounds).toImage(rgbPixels);
+   }
+
    /**
     * Make an empty white image.
     */
@@ -225,36 +247,33 @@ public class ImageUtils {
    }
 
    public static double density(MagickImage image, int whiteThreshold) throws Exception {
-      Dimension dimensions = image.getDimension();
-      byte[] pixels = Filters.averageChannels(Filters.bwPixels(image, whiteThreshold), 3);
-
-      return density(pixels, dimensions.width,
-                     0, dimensions.height,
-                     0, dimensions.width,
-                     whiteThreshold);
+      return IntegralImage.fromImage(image, whiteThreshold).density();
    }
 
+   /**
+    * Split the image up into |regionsPerSide| x |regionsPerSide| regions and
+    *  get the density of each one.
+    * Use an IntegralImage directly if there are more questions to ask about the same image.
+    */
    public static double[] regionDensities(MagickImage image,
                                           int whiteThreshold,
                                           int regionsPerSide) throws Exception {
-      Dimension dimensions = image.getDimension();
-      byte[] pixels = Filters.averageChannels(Filters.bwPixels(image, whiteThreshold), 3);
-
-      double[] regionDensities = new double[regionsPerSide * regionsPerSide];
-
-      for (int regionRow = 0; regionRow < regionsPerSide; regionRow++) {
-         for (int regionCol = 0; regionCol < regionsPerSide; regionCol++) {
-            regionDensities[regionRow * regionsPerSide + regionCol] =
-                  density(pixels, dimensions.width,
-                          regionRow * dimensions.height / regionsPerSide,
-                          dimensions.height / regionsPerSide,
-                          regionCol * dimensions.width / regionsPerSide,
-                          dimensions.width / regionsPerSide,
-                          whiteThreshold);
-         }
+      return IntegralImage.fromImage(image, whiteThreshold).regionDensities(regionsPerSide);
+   }
+
+   /**
+    * Same as above, but |thresholder| decides what is black.
+    */
+   public static double[] regionDensities(MagickImage image,
+                                          Thresholder thresholder,
+                                          int regionsPerSide) throws Exception {
+      int threshold = thresholder.getGlobalThreshold();
+      if (threshold >= 0) {
+         return regionDensities(image, threshold, regionsPerSide);
       }
 
-      return regionDensities;
+      BinaryRaster black = thresholder.threshold(GrayRaster.fromImage(image));
+      return new IntegralImage(black).regionDensities(regionsPerSide);
    }
 
    public static double[] regionDensity(MagickImage image,
@@ -264,51 +283,16 @@ public class ImageUtils {
 
    /**
     * Shrink an image so that there no bordering whitespace.
-    * If the image is all whitespace, then a zero size image will be returned.
+    * If the image is all whitespace, then its top left pixel is returned.
+    * The pixels are only packed into bits to find the bounds (see shrinkBounds()),
+    *  the crop itself is left to JMagick.
     */
    public static MagickImage shrinkImage(MagickImage image, int whiteThreshold) throws Exception {
-      Dimension dimensions = image.getDimension();
-      byte[] pixels = new byte[dimensions.width * dimensions.height * 3];
+      int[] bounds = shrinkBounds(BinaryRaster.fromImage(image, whiteThreshold - 1));
 
-      image.dispatchImage(0, 0,
-                          dimensions.width, dimensions.height,
-                          "RGB",
-                          pixels);
-
-      byte[] meanPixels = Filters.averageChannels(pixels, 3);
-
-      int minRow = scanRows(meanPixels, dimensions.width, whiteThreshold,
-                            0, dimensions.height - 1, 1);
-      int maxRow = scanRows(meanPixels, dimensions.width, whiteThreshold,
-                            dimensions.height - 1, 0, -1);
-      int minCol = scanCols(meanPixels, dimensions.width, whiteThreshold,
-                            0, dimensions.width - 1, 1);
-      int maxCol = scanCols(meanPixels, dimensions.width, whiteThreshold,
-                            dimensions.width - 1, 0, -1);
-
-      if (minRow == -1 || maxRow == -1 || minCol == -1 || maxCol == -1) {
-         return image.cropImage(new Rectangle(0, 0, 1, 1));
-      }
-
-      byte[] newPixels = new byte[(maxCol - minCol + 1) * (maxRow - minRow + 1) * 3];
-      for (int row = minRow; row <= maxRow; row++) {
-         for (int col = minCol; col <= maxCol; col++) {
-            int baseFullIndex = MathUtils.rowColToIndex(row, col, dimensions.width) * 3;
-            int baseShrinkIndex = MathUtils.rowColToIndex(row - minRow,
-                                                          col - minCol,
-                                                          maxCol - minCol + 1) * 3;
-
-            newPixels[baseShrinkIndex + 0] = pixels[baseFullIndex + 0];
-            newPixels[baseShrinkIndex + 1] = pixels[baseFullIndex + 1];
-            newPixels[baseShrinkIndex + 2] = pixels[baseFullIndex + 2];
-         }
-      }
-      MagickImage newImage = new MagickImage();
-      newImage.constituteImage(maxCol - minCol + 1, maxRow - minRow + 1,
-                               "RGB",
-                               newPixels);
-
-      return newImage;
+      return image.cropImage(new Rectangle(bounds[1], bounds[0],
+                                           bounds[3] - bounds[1] + 1,
+                                           bounds[2] - bounds[0] + 1));
    }
 
    public static MagickImage shrinkImage(MagickImage image) throws Exception {
@@ -316,35 +300,30 @@ public class ImageUtils {
    }
 
    /**
-    * Find the first occurance of a non-white pixel.
-    * Will return a number between rowStart and rowEnd (inclusivley) or -1.
-    * If there is no occurance of a non-white pixel, then -1 is returned.
+    * Same as shrinkImage(), but on a raster (and nothing is copied, a view is returned).
+    * Just like shrinkImage(), an all white raster becomes its top left pixel.
     */
-   private static int scanRows(byte[] pixels, int width, int whiteThreshold,
-                               int rowStart, int rowEnd, int rowStep) {
-      for (int row = rowStart; row != rowEnd + rowStep; row += rowStep) {
-         for (int col = 0; col < width; col++) {
-            int index = MathUtils.rowColToIndex(row, col, width);
-            if ((0xFF & pixels[index]) < whiteThreshold) {
-               return row;
-            }
-         }
-      }
+   public static GrayRaster shrinkRaster(GrayRaster raster, int whiteThreshold) {
+      // Non-white is strictly darker than |whiteThreshold|.
+      return raster.view(shrinkBounds(raster.threshold(whiteThreshold - 1)));
+   }
 
-      return -1;
+   public static GrayRaster shrinkRaster(GrayRaster raster) {
+      return shrinkRaster(raster, DEFAULT_WHITE_THRESHOLD);
    }
 
-   private static int scanCols(byte[] pixels, int width, int whiteThreshold,
-                               int colStart, int colEnd, int colStep) {
-      for (int col = colStart; col != colEnd + colStep; col += colStep) {
-         for (int row = 0; row < pixels.length / width; row++) {
-            int index = MathUtils.rowColToIndex(row, col, width);
-            if ((0xFF & pixels[index]) < whiteThreshold) {
-               return col;
-            }
-         }
+   /**
+    * The bounds that shrinkImage() and shrinkRaster() crop to, where |ink| is the
+    *  non-white pixels: [top, left, bottom, right] (inclusive).
+    * If there is no ink, then this is just the top left pixel.
+    */
+   public static int[] shrinkBounds(BinaryRaster ink) {
+      int[] bounds = ink.tightBounds();
+
+      if (bounds == null) {
+         return new int[]{0, 0, 0, 0};
       }
 
-      return -1;
+      return bounds;
    }
 }